@@ -0,0 +1,132 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.benchmarks;
+
+import net.dv8tion.jda.core.entities.*;
+import org.gimu.discordnano.DiscordNano;
+import org.gimu.discordnano.commands.AbstractCommand;
+import org.gimu.discordnano.commands.AbstractSubCommand;
+import org.gimu.discordnano.commands.CommandArguments;
+import org.gimu.discordnano.commands.CommandHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandHandlerBenchmark {
+
+    private static final String[] COMMANDS = {
+            "help", "info", "ping", "eval", "music", "mod", "anime", "manga", "osu", "avatar",
+            "roll", "choose", "quote", "remind", "weather", "translate", "urban", "wiki", "stats", "uptime"
+    };
+
+    private static final String[] SUB_COMMANDS = {"play", "skip", "queue", "volume", "search", "textchannel", "voicechannel"};
+
+    private CommandHandler handler;
+    private Message[] traffic;
+    private int cursor;
+
+    @Setup
+    public void setup() {
+        Fixtures.ensureConfig();
+        DiscordNano.PREFIX = "!";
+
+        handler = new CommandHandler();
+        for (String alias : COMMANDS) {
+            handler.addMainCommand(alias, new NoopCommand(alias));
+        }
+        for (String alias : SUB_COMMANDS) {
+            handler.addSubCommand(alias, "music", new NoopSubCommand(alias));
+            handler.addSubCommand(alias, "mod", new NoopSubCommand(alias));
+        }
+
+        // Mixed traffic: chatter, unknown commands, plain commands, sub commands and quoted arguments
+        Random random = new Random(Fixtures.SEED);
+        Guild guild = Stubs.guild(Fixtures.snowflake(random));
+        TextChannel channel = Stubs.textChannel(Fixtures.snowflake(random), guild);
+        User[] users = new User[64];
+        for (int i = 0; i < users.length; i++) {
+            users[i] = Stubs.user(Fixtures.snowflake(random), "user" + i, String.format("%04d", i));
+        }
+
+        traffic = new Message[1024];
+        for (int i = 0; i < traffic.length; i++) {
+            String content;
+            switch (random.nextInt(6)) {
+                case 0:
+                    content = "just chatting about the last episode, anyone watched it yet?";
+                    break;
+                case 1:
+                    content = "!unknowncommand with some arguments";
+                    break;
+                case 2:
+                    content = "!" + COMMANDS[random.nextInt(COMMANDS.length)].toUpperCase();
+                    break;
+                case 3:
+                    content = "!" + COMMANDS[random.nextInt(COMMANDS.length)] + " first second third " + i;
+                    break;
+                case 4:
+                    content = "!music " + SUB_COMMANDS[random.nextInt(SUB_COMMANDS.length)] + " some song title " + i;
+                    break;
+                default:
+                    content = "!remind \"take out the trash\" in 20 minutes";
+            }
+            traffic[i] = Stubs.message(Fixtures.snowflake(random), content, users[random.nextInt(users.length)], channel);
+        }
+    }
+
+    @Benchmark
+    public void parseMessage() {
+        handler.parseMessage(traffic[cursor++ & (traffic.length - 1)]);
+    }
+
+    static class NoopCommand extends AbstractCommand {
+
+        NoopCommand(String alias) {
+            super("Benchmark command", alias + " <args>", alias);
+        }
+
+        @Override
+        public Optional<Message> execute(User author, Message message, CommandArguments args) {
+            if (!args.isEmpty()) {
+                args.get(0);
+            }
+            return Optional.empty();
+        }
+    }
+
+    static class NoopSubCommand extends AbstractSubCommand {
+
+        NoopSubCommand(String alias) {
+            super("Benchmark sub command", alias + " <args>");
+        }
+
+        @Override
+        public Optional<Message> execute(User author, Message message, CommandArguments args) {
+            if (!args.isEmpty()) {
+                args.get(args.size() - 1);
+            }
+            return Optional.empty();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Shared fixture data. Every generator is seeded so runs are comparable.
+ */
+final class Fixtures {
+
+    static final long SEED = 0x6E616E6FL;
+
+    private static final String[] WORDS = {
+            "love", "night", "dream", "fire", "heart", "sky", "light", "rain", "star", "ocean",
+            "shadow", "storm", "summer", "winter", "moon", "sun", "city", "road", "river", "world",
+            "blue", "red", "golden", "silver", "broken", "wild", "lost", "endless", "silent", "electric"
+    };
+
+    private static final String[] ARTISTS = {
+            "Aimer", "Supercell", "Kalafina", "LiSA", "Yoasobi", "Radwimps", "Daft Punk", "Muse",
+            "Nujabes", "ClariS", "Eir Aoi", "FripSide", "Linked Horizon", "Perfume", "Porter Robinson"
+    };
+
+    private Fixtures() {
+    }
+
+    // DiscordNano reads config.json while initializing, make sure one exists
+    static void ensureConfig() {
+        File config = new File("config.json");
+        if (config.exists()) {
+            return;
+        }
+        String json = "{\"prefix\":\"!\",\"token\":\"benchmark\",\"debug\":false,\"default_status\":\"\","
+                + "\"default_volume\":\"0.25\",\"random_music\":false,\"db_user\":\"\",\"db_pass\":\"\"}";
+        try {
+            Files.write(config.toPath(), json.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        config.deleteOnExit();
+    }
+
+    static String[] trackTitles(int count) {
+        Random random = new Random(SEED);
+        String[] titles = new String[count];
+        for (int i = 0; i < count; i++) {
+            titles[i] = ARTISTS[random.nextInt(ARTISTS.length)] + " - "
+                    + capitalize(WORDS[random.nextInt(WORDS.length)]) + " "
+                    + capitalize(WORDS[random.nextInt(WORDS.length)]) + " #" + i;
+        }
+        return titles;
+    }
+
+    static String trackSource(int index) {
+        return "https://www.youtube.com/watch?v=" + Long.toString(SEED * 31 + index, 36);
+    }
+
+    static String[] trackQueries(String[] titles, int count) {
+        Random random = new Random(SEED + 1);
+        String[] queries = new String[count];
+        for (int i = 0; i < count; i++) {
+            switch (random.nextInt(4)) {
+                case 0: // Index lookup
+                    queries[i] = Integer.toString(random.nextInt(titles.length));
+                    break;
+                case 1: // Artist
+                    queries[i] = ARTISTS[random.nextInt(ARTISTS.length)].toLowerCase();
+                    break;
+                case 2: // Part of a title
+                    String title = titles[random.nextInt(titles.length)];
+                    int start = random.nextInt(Math.max(1, title.length() - 8));
+                    queries[i] = title.substring(start, start + 8);
+                    break;
+                default: // Miss
+                    queries[i] = "zz" + WORDS[random.nextInt(WORDS.length)] + "qq";
+            }
+        }
+        return queries;
+    }
+
+    static String snowflake(Random random) {
+        // Milliseconds since the Discord epoch in the upper bits, like real ids
+        long timestamp = (long) (random.nextDouble() * 60_000_000_000L);
+        return Long.toString((timestamp << 22) | random.nextInt(1 << 22));
+    }
+
+    private static String capitalize(String word) {
+        return Character.toUpperCase(word.charAt(0)) + word.substring(1);
+    }
+}
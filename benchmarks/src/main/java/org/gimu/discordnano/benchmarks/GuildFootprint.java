@@ -0,0 +1,67 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.benchmarks;
+
+import org.gimu.discordnano.lib.NanoGuild;
+import org.gimu.discordnano.lib.NanoGuildMap;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+/**
+ * Retained size of the guild registry, compared with the previous layout of a
+ * {@code LinkedHashMap} keyed by id strings with string channel ids.
+ * <pre>
+ * java -cp target/benchmarks.jar org.gimu.discordnano.benchmarks.GuildFootprint [guilds]
+ * </pre>
+ */
+public class GuildFootprint {
+
+    public static void main(String[] args) {
+        int guilds = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+
+        Random random = new Random(Fixtures.SEED);
+        LinkedHashMap<String, LegacyGuild> legacy = new LinkedHashMap<String, LegacyGuild>();
+        NanoGuildMap map = new NanoGuildMap();
+        for (int i = 0; i < guilds; i++) {
+            String guildID = Fixtures.snowflake(random);
+            String textchannel = Fixtures.snowflake(random);
+            legacy.put(guildID, new LegacyGuild(textchannel, ""));
+            map.put(Long.parseLong(guildID), new NanoGuild(Long.parseLong(textchannel), 0));
+        }
+
+        report("LinkedHashMap<String, NanoGuild>", GraphLayout.parseInstance(legacy), guilds);
+        report("NanoGuildMap", GraphLayout.parseInstance(map), guilds);
+    }
+
+    private static void report(String name, GraphLayout layout, int guilds) {
+        System.out.println(name + ": " + layout.totalSize() + " bytes, " + layout.totalSize() / guilds + " bytes per guild");
+        System.out.println(layout.toFootprint());
+    }
+
+    // NanoGuild before channel ids were stored as longs
+    private static final class LegacyGuild {
+
+        final String textchannel;
+        final String voicechannel;
+
+        LegacyGuild(String textchannel, String voicechannel) {
+            this.textchannel = textchannel;
+            this.voicechannel = voicechannel;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.benchmarks;
+
+import org.gimu.discordnano.util.MathExpression;
+import org.gimu.discordnano.util.MathUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MathUtilBenchmark {
+
+    @Param({
+            "1 + 2 * 3",
+            "((4 - 2^3 + 1) * -sqrt(3*3+4*4)) / 2",
+            "sin(0.5)^2 + cos(0.5)^2 + ln(10) * log(1000) - tanh(0.25) / 3.14159"
+    })
+    public String expression;
+
+    private MathExpression compiled;
+    private MathExpression bound;
+    private double x;
+
+    @Setup
+    public void setup() {
+        compiled = MathUtil.compile(expression);
+        // Same shape with the literals replaced by a variable, so nothing can be folded
+        bound = MathUtil.compile(expression.replace("0.5", "x").replace("3*3", "x*x").replace("2 *", "x *"), "x");
+    }
+
+    // Parses and evaluates the string on every call
+    @Benchmark
+    public double eval() {
+        return new MathUtil(expression).eval();
+    }
+
+    // Looks the compiled form up in the expression cache
+    @Benchmark
+    public double evaluateCached() {
+        return MathUtil.evaluate(expression);
+    }
+
+    @Benchmark
+    public double evaluateCompiled() {
+        return compiled.evaluate();
+    }
+
+    @Benchmark
+    public double evaluateBound() {
+        x += 0.001;
+        return bound.evaluate(x);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.benchmarks;
+
+import net.dv8tion.jda.core.entities.Message;
+import net.dv8tion.jda.core.entities.User;
+import org.gimu.discordnano.DiscordNano;
+import org.gimu.discordnano.ShardRegistry;
+import org.gimu.discordnano.lib.EmbedFieldListBuilder;
+import org.gimu.discordnano.lib.MessageUtil;
+import org.gimu.discordnano.lib.Pair;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageUtilBenchmark {
+
+    private User[] authors;
+    private List<Pair<String, String>> fields;
+    private int cursor;
+
+    @Setup
+    public void setup() {
+        Fixtures.ensureConfig();
+        Random random = new Random(Fixtures.SEED);
+        DiscordNano.shards = new ShardRegistry(1, 1000, 100);
+        DiscordNano.shards.attach(0, Stubs.jda(Stubs.selfUser(Fixtures.snowflake(random), "Nano")));
+
+        authors = new User[256];
+        for (int i = 0; i < authors.length; i++) {
+            authors[i] = Stubs.user(Fixtures.snowflake(random), "user" + i, String.format("%04d", i));
+        }
+
+        EmbedFieldListBuilder builder = new EmbedFieldListBuilder();
+        builder.append("Score", "8.71");
+        builder.append("Episodes", "24");
+        builder.append("Status", "Finished Airing");
+        fields = builder.build();
+    }
+
+    @Benchmark
+    public Message framedText() {
+        return MessageUtil.buildFramedMessage(nextAuthor(), "Pong! The gateway latency is fine.", true);
+    }
+
+    @Benchmark
+    public Message framedWithFieldsAndImage() {
+        return MessageUtil.buildFramedMessage(nextAuthor(), "Steins;Gate", fields, "http://cdn.myanimelist.net/images/anime/5/73199.jpg", true);
+    }
+
+    private User nextAuthor() {
+        return authors[cursor++ & (authors.length - 1)];
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.benchmarks;
+
+import org.gimu.discordnano.lib.MusicLibrary;
+import org.gimu.discordnano.lib.Pair;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MusicLibraryBenchmark {
+
+    @Param({"1000", "10000"})
+    public int size;
+
+    private MusicLibrary library;
+    private String[] queries;
+    private int cursor;
+
+    @Setup
+    public void setup() {
+        String[] titles = Fixtures.trackTitles(size);
+        library = new MusicLibrary();
+        for (int i = 0; i < titles.length; i++) {
+            library.add(titles[i], Fixtures.trackSource(i));
+        }
+        queries = Fixtures.trackQueries(titles, 1024);
+    }
+
+    @Benchmark
+    public String get() {
+        return library.get(queries[cursor++ & (queries.length - 1)]);
+    }
+
+    @Benchmark
+    public List<Pair<String, String>> search() {
+        return library.search(queries[cursor++ & (queries.length - 1)], 5);
+    }
+}
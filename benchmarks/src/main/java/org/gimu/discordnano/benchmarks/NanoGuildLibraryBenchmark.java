@@ -0,0 +1,61 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.benchmarks;
+
+import org.gimu.discordnano.lib.NanoGuild;
+import org.gimu.discordnano.lib.NanoGuildLibrary;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NanoGuildLibraryBenchmark {
+
+    @Param({"10000", "50000"})
+    public int guilds;
+
+    private NanoGuildLibrary library;
+    private long[] lookups;
+    private int cursor;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(Fixtures.SEED);
+        long[] ids = new long[guilds];
+        library = new NanoGuildLibrary();
+        for (int i = 0; i < guilds; i++) {
+            ids[i] = Long.parseLong(Fixtures.snowflake(random));
+            library.getGuildMap().put(ids[i], new NanoGuild(Long.parseLong(Fixtures.snowflake(random)), 0));
+        }
+
+        // Mostly known guilds, a few ids the bot has never seen
+        lookups = new long[4096];
+        for (int i = 0; i < lookups.length; i++) {
+            lookups[i] = random.nextInt(16) == 0 ? Long.parseLong(Fixtures.snowflake(random)) : ids[random.nextInt(guilds)];
+        }
+    }
+
+    @Benchmark
+    public NanoGuild get() {
+        return library.get(lookups[cursor++ & (lookups.length - 1)]);
+    }
+}
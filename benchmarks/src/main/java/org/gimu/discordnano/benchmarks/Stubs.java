@@ -0,0 +1,124 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.benchmarks;
+
+import net.dv8tion.jda.core.JDA;
+import net.dv8tion.jda.core.entities.*;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JDA entities backed by dynamic proxies. Only the getters used on the
+ * benchmarked paths return data, everything else returns a default value.
+ */
+final class Stubs {
+
+    private Stubs() {
+    }
+
+    static User user(String id, String name, String discriminator) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("getId", id);
+        values.put("getName", name);
+        values.put("getDiscriminator", discriminator);
+        values.put("getAvatarId", "a");
+        values.put("getAvatarUrl", "https://cdn.discordapp.com/avatars/" + id + "/a.png");
+        values.put("getDefaultAvatarUrl", "https://discordapp.com/assets/default.png");
+        values.put("getAsMention", "<@" + id + ">");
+        values.put("isBot", false);
+        return stub(User.class, values);
+    }
+
+    static SelfUser selfUser(String id, String name) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("getId", id);
+        values.put("getName", name);
+        values.put("getDiscriminator", "0001");
+        values.put("getAvatarUrl", null);
+        values.put("getDefaultAvatarUrl", "https://discordapp.com/assets/default.png");
+        values.put("getAsMention", "<@" + id + ">");
+        values.put("isBot", true);
+        return stub(SelfUser.class, values);
+    }
+
+    static JDA jda(SelfUser selfUser) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("getSelfUser", selfUser);
+        values.put("getGuilds", Collections.emptyList());
+        return stub(JDA.class, values);
+    }
+
+    static Guild guild(String id) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("getId", id);
+        values.put("getName", "Guild " + id);
+        return stub(Guild.class, values);
+    }
+
+    static TextChannel textChannel(String id, Guild guild) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("getId", id);
+        values.put("getName", "general");
+        values.put("getGuild", guild);
+        return stub(TextChannel.class, values);
+    }
+
+    static Message message(String id, String content, User author, TextChannel channel) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        List<User> noMentions = Collections.emptyList();
+        values.put("getId", id);
+        values.put("getContent", content);
+        values.put("getRawContent", content);
+        values.put("getStrippedContent", content);
+        values.put("getAuthor", author);
+        values.put("getChannel", channel);
+        values.put("getTextChannel", channel);
+        values.put("getGuild", channel.getGuild());
+        values.put("getMentionedUsers", noMentions);
+        values.put("getEmbeds", Collections.emptyList());
+        values.put("isMentioned", false);
+        return stub(Message.class, values);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type, Map<String, Object> values) {
+        return (T) Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            String name = method.getName();
+            if (values.containsKey(name)) {
+                return values.get(name);
+            }
+            switch (name) {
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return type.getSimpleName() + values.get("getId");
+            }
+            Class<?> returnType = method.getReturnType();
+            if (returnType == boolean.class) return false;
+            if (returnType == int.class) return 0;
+            if (returnType == long.class) return 0L;
+            if (returnType == double.class) return 0d;
+            if (returnType == float.class) return 0f;
+            return null;
+        });
+    }
+}
@@ -54,14 +54,67 @@ class Configurator {
                         .put("prefix", "!")
                         .put("token", "EDIT THIS")
                         .put("debug", false)
+                        .put("log_level", "info")
+                        .put("log_file", "logs/nano.log")
+                        .put("log_max_file_size", 10485760)
+                        .put("log_max_files", 5)
                         .put("default_volume", "0.25")
                         .put("random_music", true)
+                        .put("music_opus_quality", 8)
+                        .put("music_resampling_quality", "low")
+                        .put("music_frame_buffer", 3000)
                         .put("db_user", "EDIT THIS")
                         .put("db_pass", "EDIT THIS")
+                        .put("db_url", "jdbc:mysql://localhost/discord")
+                        .put("db_pool_size", 10)
+                        .put("db_pool_min_idle", 2)
+                        .put("db_connection_timeout", 5000)
+                        .put("db_statement_cache_size", 250)
+                        .put("db_flush_interval", 1000)
+                        .put("db_flush_batch", 100)
                         .put("mal_user", "EDIT THIS")
                         .put("mal_pass", "EDIT THIS")
                         .put("x_mashape_key", "EDIT THIS")
                         .put("osu_api_key", "EDIT THIS")
+                        .put("http_max_connections", 50)
+                        .put("http_max_per_host", 8)
+                        .put("http_connect_timeout", 5000)
+                        .put("http_read_timeout", 10000)
+                        .put("http_keep_alive", 30000)
+                        .put("http_gzip", true)
+                        .put("json_max_bytes", 16777216)
+                        .put("embed_footer_cache_size", 1000)
+                        .put("http_cache_max_bytes", 16777216)
+                        .put("http_cache_default_ttl", 0)
+                        .put("http_cache_stale_retention", 3600)
+                        .put("http_cache_ttls", new JSONObject()
+                                .put("https://myanimelist.net/api/", 3600)
+                                .put("https://osu.ppy.sh/api/", 60))
+                        .put("shard_count", 1)
+                        .put("shard_identify_interval", 5500)
+                        .put("cluster_enabled", false)
+                        .put("cluster_lease_time", 30000)
+                        .put("cluster_heartbeat_interval", 10000)
+                        .put("cluster_lease_margin", 5000)
+                        .put("cluster_max_shards", 1)
+                        .put("command_workers", 8)
+                        .put("command_queue_size", 64)
+                        .put("outbound_coalesce_window", 250)
+                        .put("outbound_queue_size", 50)
+                        .put("outbound_message_burst", 5)
+                        .put("outbound_message_period", 5000)
+                        .put("outbound_reaction_period", 250)
+                        .put("outbound_typing_period", 5000)
+                        .put("outbound_global_rate", 50)
+                        .put("metrics_enabled", true)
+                        .put("metrics_host", "127.0.0.1")
+                        .put("metrics_port", 9091)
+                        .put("conversation_sessions", 1000)
+                        .put("conversation_idle_timeout", 600000)
+                        .put("conversation_threads", 4)
+                        .put("conversation_queue_size", 64)
+                        .put("conversation_timeout", 10000)
+                        .put("conversation_guild_limit", 2)
                         .toString(11).getBytes());
     }
 
@@ -15,29 +15,35 @@
  */
 package org.gimu.discordnano;
 
-import net.dv8tion.jda.core.AccountType;
-import net.dv8tion.jda.core.JDA;
-import net.dv8tion.jda.core.JDABuilder;
 import net.dv8tion.jda.core.entities.User;
-import net.dv8tion.jda.core.exceptions.RateLimitedException;
+import org.gimu.discordnano.commands.CommandScheduler;
+import org.gimu.discordnano.lib.CleverBotBackend;
+import org.gimu.discordnano.lib.ConversationEngine;
 import org.gimu.discordnano.lib.MusicLibrary;
-import org.gimu.discordnano.lib.NanoGuildLibrary;
+import org.gimu.discordnano.lib.NanoDatabase;
 import org.gimu.discordnano.lib.NanoLogger;
-import org.gimu.discordnano.listeners.CommandListener;
-import org.gimu.discordnano.listeners.ConversationListener;
+import org.gimu.discordnano.lib.NanoMetrics;
+import org.gimu.discordnano.lib.NanoPlayer;
+import org.gimu.discordnano.lib.OutboundScheduler;
+import org.gimu.discordnano.util.HTTPCache;
+import org.gimu.discordnano.util.HTTPClient;
 import org.json.JSONObject;
 
-import javax.security.auth.login.LoginException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
 
 public class DiscordNano {
 
-    public static JDA bot = null;
-
     public static final long START_TIME = System.currentTimeMillis();
     public static final JSONObject config = Configurator.getConfig();
 
     public static MusicLibrary musicLibrary = new MusicLibrary();
-    public static NanoGuildLibrary guildLibrary = new NanoGuildLibrary();
+    public static ShardRegistry shards;
+    public static ShardLeaseManager cluster;
+    public static CommandScheduler commandScheduler;
+    public static ConversationEngine conversationEngine;
+    public static OutboundScheduler outbound;
 
     public static String DEFAULT_STATUS;
     public static String PREFIX;
@@ -48,27 +54,113 @@ public class DiscordNano {
     public static String DB_PASS;
     public static String BOT_OWNER = "211615203115139072";
 
-    public static void main(String[] args) throws LoginException {
-        // Init library
-        // Deserialization
-        NanoLogger.debug("Initializing music library");
-
+    public static void main(String[] args) {
         // Configuration
         DEFAULT_STATUS = config.getString("default_status");
         PREFIX = config.getString("prefix");
         DEBUG = config.getBoolean("debug");
+        NanoLogger.configure(DEBUG ? NanoLogger.Level.DEBUG : NanoLogger.Level.valueOf(config.optString("log_level", "info").toUpperCase()),
+                config.optString("log_file", "logs/nano.log"),
+                config.optLong("log_max_file_size", 10485760),
+                config.optInt("log_max_files", 5));
         DB_USER = config.getString("db_user");
         DB_PASS = config.getString("db_pass");
         RANDOM_MUSIC = config.getBoolean("random_music");
         DEFAULT_VOLUME = Float.parseFloat(config.getString("default_volume"));
+        NanoPlayer.configure(config.optInt("music_opus_quality", 8),
+                config.optString("music_resampling_quality", "low"),
+                config.optInt("music_frame_buffer", 3000));
+        NanoPlayer.setDefaults(Math.round(DEFAULT_VOLUME * 100), RANDOM_MUSIC ? musicLibrary : null);
+
+        // Gateway shards, each with its own guilds
+        shards = new ShardRegistry(config.optInt("shard_count", 1),
+                config.optLong("db_flush_interval", 1000),
+                config.optInt("db_flush_batch", 100));
+
+        // Command execution
+        commandScheduler = new CommandScheduler(
+                config.optInt("command_workers", Runtime.getRuntime().availableProcessors() * 2),
+                config.optInt("command_queue_size", 64));
+
+        // Outgoing messages, reactions and typing indicators
+        outbound = new OutboundScheduler(
+                config.optLong("outbound_coalesce_window", 250),
+                config.optInt("outbound_queue_size", 50),
+                config.optInt("outbound_message_burst", 5),
+                config.optLong("outbound_message_period", 5000),
+                config.optLong("outbound_reaction_period", 250),
+                config.optLong("outbound_typing_period", 5000),
+                config.optInt("outbound_global_rate", 50));
+
+        // Conversations
+        conversationEngine = new ConversationEngine(new CleverBotBackend(),
+                config.optInt("conversation_sessions", 1000),
+                config.optLong("conversation_idle_timeout", 600000),
+                config.optInt("conversation_threads", 4),
+                config.optInt("conversation_queue_size", 64),
+                config.optLong("conversation_timeout", 10000),
+                config.optInt("conversation_guild_limit", 2));
 
-        bot = null;
-        try {
-            bot = new JDABuilder(AccountType.BOT).setToken(config.getString("token")).buildAsync();
-        } catch (RateLimitedException e) {
-            e.printStackTrace();
+        if (config.optBoolean("metrics_enabled", true)) {
+            registerMetrics();
+            try {
+                NanoMetrics.start(config.optString("metrics_host", "127.0.0.1"), config.optInt("metrics_port", 9091));
+            } catch (IOException e) {
+                NanoLogger.error("Metrics endpoint failed to start: {}", e.getMessage());
+            }
         }
-        bot.addEventListener(new CommandListener(bot));
-        bot.addEventListener(new ConversationListener(bot));
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            shards.shutdown(); // Flush queued guild writes while the pool is still open
+            if (cluster != null) cluster.shutdown();
+            NanoPlayer.shutdown();
+            NanoDatabase.close();
+            NanoLogger.shutdown();
+        }, "database-shutdown"));
+
+        long identifyInterval = config.optLong("shard_identify_interval", 5500);
+        shards.start(config.getString("token"), identifyInterval);
+        if (config.optBoolean("cluster_enabled", false)) {
+            // Only the shards leased by this process
+            cluster = new ShardLeaseManager(shards.getShardTotal(),
+                    config.optString("cluster_node_id", ManagementFactory.getRuntimeMXBean().getName()),
+                    config.optLong("cluster_lease_time", 30000),
+                    config.optLong("cluster_heartbeat_interval", 10000),
+                    config.optLong("cluster_lease_margin", 5000),
+                    identifyInterval,
+                    config.optInt("cluster_max_shards", shards.getShardTotal()),
+                    shards::startShard, shards::stopShard);
+            shards.setIdentifyGate(cluster::tryIdentify);
+            try {
+                cluster.start();
+            } catch (SQLException e) {
+                NanoLogger.error("Joining the cluster failed: {}", e.getMessage());
+                System.exit(1);
+            }
+            NanoMetrics.gauge("nano_cluster_shards_owned", "Shards leased by this process", () -> cluster.getOwnedCount());
+        } else {
+            shards.startAll();
+        }
+    }
+
+    private static void registerMetrics() {
+        NanoMetrics.gauge("nano_command_queue_depth", "Commands waiting for a worker", () -> commandScheduler.getQueueDepth());
+        NanoMetrics.counter("nano_command_rejected_total", "Commands rejected because the queue was full", () -> commandScheduler.getRejectedCount());
+        NanoMetrics.gauge("nano_outbound_queue_depth", "Messages, reactions and typing indicators waiting to be sent", () -> outbound.getQueueDepth());
+        NanoMetrics.counter("nano_outbound_merged_total", "Text messages merged into a previous one", () -> outbound.getMergedCount());
+        NanoMetrics.counter("nano_outbound_throttled_total", "Outbound actions delayed by a rate limit bucket", () -> outbound.getThrottledCount());
+        NanoMetrics.gauge("nano_conversation_sessions", "Open conversation sessions", () -> conversationEngine.getSessionCount());
+        NanoMetrics.gauge("nano_db_connections_active", "Connections in use", NanoDatabase::getActiveConnections);
+        NanoMetrics.gauge("nano_db_connections_idle", "Idle connections in the pool", NanoDatabase::getIdleConnections);
+        NanoMetrics.gauge("nano_db_threads_waiting", "Threads waiting for a connection", NanoDatabase::getPendingThreads);
+        NanoMetrics.gauge("nano_db_pending_guild_writes", "Guild changes not yet written", () -> shards.getPendingGuildWrites());
+        NanoMetrics.gauge("nano_shards_connected", "Shards connected to the gateway", () -> shards.getConnectedCount());
+        NanoMetrics.gauge("nano_audio_players", "Guilds with a music player", NanoPlayer::getPlayerCount);
+        NanoMetrics.gauge("nano_http_connections_leased", "HTTP connections in use", () -> HTTPClient.getShared().getLeasedConnections());
+        NanoMetrics.gauge("nano_http_requests_waiting", "HTTP requests waiting for a connection", () -> HTTPClient.getShared().getPendingRequests());
+        NanoMetrics.counter("nano_http_cache_hits_total", "Responses served from the cache", () -> HTTPCache.getShared().getHits());
+        NanoMetrics.counter("nano_http_cache_misses_total", "Responses fetched from upstream", () -> HTTPCache.getShared().getMisses());
+        NanoMetrics.counter("nano_log_dropped_total", "Log messages overwritten before they were written", NanoLogger::getDroppedCount);
+        NanoMetrics.counter("nano_http_cache_coalesced_total", "Requests that waited for an identical one in flight", () -> HTTPCache.getShared().getCoalesced());
     }
 }
@@ -0,0 +1,270 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano;
+
+import org.gimu.discordnano.lib.NanoDatabase;
+import org.gimu.discordnano.lib.NanoLogger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntConsumer;
+
+/**
+ * Cluster mode: shards are owned through lease rows in the ShardLeases table.
+ * Every heartbeat renews the leases of this process and claims free or expired
+ * shards up to its limit, so the shards of a node that stopped heartbeating are
+ * taken over once its leases ran out. A separate timer stops every shard whose
+ * lease has less than the safety margin left, it never waits on the database,
+ * so a hanging heartbeat can't keep a shard running after another process may
+ * have claimed it.
+ *
+ * The row with shard id -1 spaces identifies of all processes. Expiry times
+ * come from the local clocks, the margin has to be well above their skew.
+ */
+public class ShardLeaseManager {
+
+    private static final int IDENTIFY_ROW = -1;
+
+    private final String nodeID;
+    private final long leaseTime;
+    private final long heartbeatInterval;
+    private final long leaseMargin;
+    private final long identifyInterval;
+    private final int maxShards;
+    private final IntConsumer startShard;
+    private final IntConsumer stopShard;
+
+    private final AtomicLongArray expiries; // Local lease expiry per shard, 0 if not owned
+    private ScheduledExecutorService timers;
+
+    public ShardLeaseManager(int shardTotal, String nodeID, long leaseTime, long heartbeatInterval, long leaseMargin, long identifyInterval, int maxShards,
+                             IntConsumer startShard, IntConsumer stopShard) {
+        if (leaseMargin <= 0 || leaseMargin >= leaseTime - heartbeatInterval) {
+            throw new IllegalArgumentException("The lease margin has to be positive and below the lease time minus the heartbeat interval");
+        }
+        this.nodeID = nodeID;
+        this.leaseTime = leaseTime;
+        this.heartbeatInterval = heartbeatInterval;
+        this.leaseMargin = leaseMargin;
+        this.identifyInterval = identifyInterval;
+        this.maxShards = maxShards;
+        this.startShard = startShard;
+        this.stopShard = stopShard;
+        this.expiries = new AtomicLongArray(shardTotal);
+    }
+
+    public void start() throws SQLException {
+        createRows();
+        timers = Executors.newScheduledThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "shard-leases");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timers.scheduleWithFixedDelay(this::heartbeat, 0, heartbeatInterval, TimeUnit.MILLISECONDS);
+        // Checked twice per margin, a shard stops with at least half the margin left
+        long guardInterval = Math.max(1, leaseMargin / 2);
+        timers.scheduleWithFixedDelay(this::expireLeases, guardInterval, guardInterval, TimeUnit.MILLISECONDS);
+        NanoLogger.info("Joined cluster as {}, owning up to {} of {} shards", nodeID, maxShards, expiries.length());
+    }
+
+    void createRows() throws SQLException {
+        try (Connection conn = NanoDatabase.getConnection()) {
+            try (Statement st = conn.createStatement()) {
+                st.executeUpdate("CREATE TABLE IF NOT EXISTS ShardLeases (shard_id INT NOT NULL PRIMARY KEY, owner VARCHAR(128), expires_at BIGINT NOT NULL)");
+            }
+
+            Set<Integer> existing = new HashSet<Integer>();
+            try (Statement st = conn.createStatement();
+                 ResultSet rs = st.executeQuery("SELECT shard_id FROM ShardLeases")) {
+                while (rs.next()) {
+                    existing.add(rs.getInt(1));
+                }
+            }
+            try (PreparedStatement ps = conn.prepareStatement("INSERT INTO ShardLeases (shard_id, owner, expires_at) VALUES(?, NULL, 0)")) {
+                for (int shardId = IDENTIFY_ROW; shardId < expiries.length(); shardId++) {
+                    if (existing.contains(shardId)) {
+                        continue;
+                    }
+                    ps.setInt(1, shardId);
+                    try {
+                        ps.executeUpdate();
+                    } catch (SQLException e) {
+                        // Another process inserted it first
+                        if (e.getSQLState() == null || !e.getSQLState().startsWith("23")) throw e;
+                    }
+                }
+            }
+        }
+    }
+
+    synchronized void heartbeat() {
+        long now = System.currentTimeMillis();
+        long expires = now + leaseTime;
+        try (Connection conn = NanoDatabase.getConnection()) {
+            renew(conn, expires);
+            claim(conn, now, expires);
+        } catch (SQLException | RuntimeException e) {
+            NanoLogger.error("Shard lease heartbeat failed: {}", e.getMessage());
+        }
+    }
+
+    // Stops the shards whose lease runs out within the margin, before anyone else may claim them
+    void expireLeases() {
+        long deadline = System.currentTimeMillis() + leaseMargin;
+        for (int shardId = 0; shardId < expiries.length(); shardId++) {
+            long expiry = expiries.get(shardId);
+            if (expiry != 0 && expiry <= deadline) {
+                lose(shardId, expiry, "not renewed in time");
+            }
+        }
+    }
+
+    private void renew(Connection conn, long expires) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("UPDATE ShardLeases SET expires_at = ? WHERE owner = ? AND shard_id >= 0")) {
+            ps.setLong(1, expires);
+            ps.setString(2, nodeID);
+            ps.executeUpdate();
+        }
+
+        Set<Integer> owned = new HashSet<Integer>();
+        try (PreparedStatement ps = conn.prepareStatement("SELECT shard_id FROM ShardLeases WHERE owner = ? AND shard_id >= 0")) {
+            ps.setString(1, nodeID);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    owned.add(rs.getInt(1));
+                }
+            }
+        }
+        for (int shardId = 0; shardId < expiries.length(); shardId++) {
+            if (owned.contains(shardId)) {
+                acquire(shardId, expires);
+            } else {
+                lose(shardId, expiries.get(shardId), "taken over");
+            }
+        }
+    }
+
+    // Lowest free shard ids first, so processes end up with ranges of shards
+    private void claim(Connection conn, long now, long expires) throws SQLException {
+        int owned = getOwnedCount();
+        if (owned >= maxShards) {
+            return;
+        }
+
+        List<Integer> free = new ArrayList<Integer>();
+        try (PreparedStatement ps = conn.prepareStatement("SELECT shard_id FROM ShardLeases WHERE shard_id >= 0 AND shard_id < ? AND (owner IS NULL OR expires_at < ?) ORDER BY shard_id")) {
+            ps.setInt(1, expiries.length());
+            ps.setLong(2, now);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    free.add(rs.getInt(1));
+                }
+            }
+        }
+
+        try (PreparedStatement ps = conn.prepareStatement("UPDATE ShardLeases SET owner = ?, expires_at = ? WHERE shard_id = ? AND (owner IS NULL OR expires_at < ?)")) {
+            for (int shardId : free) {
+                if (owned >= maxShards) {
+                    break;
+                }
+                ps.setString(1, nodeID);
+                ps.setLong(2, expires);
+                ps.setInt(3, shardId);
+                ps.setLong(4, now);
+                // Only one process wins the row
+                if (ps.executeUpdate() == 1) {
+                    acquire(shardId, expires);
+                    owned++;
+                }
+            }
+        }
+    }
+
+    private void acquire(int shardId, long expires) {
+        if (expires - System.currentTimeMillis() <= leaseMargin) {
+            return; // The heartbeat took too long, the guard stops the shard if it runs
+        }
+        while (true) {
+            long expiry = expiries.get(shardId);
+            if (expiry == 0) {
+                if (expiries.compareAndSet(shardId, 0, expires)) {
+                    NanoLogger.info("Acquired the lease of shard {}", shardId);
+                    startShard.accept(shardId);
+                    return;
+                }
+            } else if (expiries.compareAndSet(shardId, expiry, Math.max(expiry, expires))) {
+                return;
+            }
+        }
+    }
+
+    // Only the caller that clears the expiry it saw stops the shard
+    private void lose(int shardId, long expiry, String reason) {
+        if (expiry != 0 && expiries.compareAndSet(shardId, expiry, 0)) {
+            NanoLogger.warning("Lost the lease of shard {} ({})", shardId, reason);
+            stopShard.accept(shardId);
+        }
+    }
+
+    // Claims the shared identify slot, false if another process identified too recently
+    public boolean tryIdentify() {
+        long now = System.currentTimeMillis();
+        try (Connection conn = NanoDatabase.getConnection();
+             PreparedStatement ps = conn.prepareStatement("UPDATE ShardLeases SET owner = ?, expires_at = ? WHERE shard_id = ? AND expires_at <= ?")) {
+            ps.setString(1, nodeID);
+            ps.setLong(2, now + identifyInterval);
+            ps.setInt(3, IDENTIFY_ROW);
+            ps.setLong(4, now);
+            return ps.executeUpdate() == 1;
+        } catch (SQLException e) {
+            NanoLogger.error("Claiming the identify slot failed: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    public int getOwnedCount() {
+        int owned = 0;
+        for (int shardId = 0; shardId < expiries.length(); shardId++) {
+            if (expiries.get(shardId) != 0) owned++;
+        }
+        return owned;
+    }
+
+    // Hands the leases back so other processes take over right away, called on shutdown
+    public synchronized void shutdown() {
+        if (timers != null) {
+            timers.shutdownNow();
+        }
+        try (Connection conn = NanoDatabase.getConnection();
+             PreparedStatement ps = conn.prepareStatement("UPDATE ShardLeases SET owner = NULL, expires_at = 0 WHERE owner = ? AND shard_id >= 0")) {
+            ps.setString(1, nodeID);
+            ps.executeUpdate();
+        } catch (SQLException e) {
+            NanoLogger.error("Releasing shard leases failed: {}", e.getMessage());
+        }
+    }
+}
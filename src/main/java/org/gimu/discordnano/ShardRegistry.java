@@ -0,0 +1,299 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano;
+
+import net.dv8tion.jda.core.AccountType;
+import net.dv8tion.jda.core.JDA;
+import net.dv8tion.jda.core.JDABuilder;
+import net.dv8tion.jda.core.entities.User;
+import net.dv8tion.jda.core.events.DisconnectEvent;
+import net.dv8tion.jda.core.events.ReadyEvent;
+import net.dv8tion.jda.core.events.ShutdownEvent;
+import net.dv8tion.jda.core.exceptions.RateLimitedException;
+import net.dv8tion.jda.core.hooks.ListenerAdapter;
+import org.gimu.discordnano.lib.NanoGuildLibrary;
+import org.gimu.discordnano.lib.NanoLogger;
+import org.gimu.discordnano.lib.NanoPlayer;
+import org.gimu.discordnano.listeners.CommandListener;
+import org.gimu.discordnano.listeners.ConversationListener;
+import org.gimu.discordnano.listeners.MessageDispatcher;
+
+import javax.security.auth.login.LoginException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Gateway shards and the guilds they serve. Shards log in one after another,
+ * at most one identify per interval, and every shard has its own listeners
+ * and guild library. A shard that shuts down on its own is rebuilt without
+ * touching the others.
+ *
+ * Standalone processes start every shard, in cluster mode the
+ * {@link ShardLeaseManager} starts and stops the shards this process owns.
+ */
+public class ShardRegistry {
+
+    private final int shardTotal;
+    private final AtomicReferenceArray<JDA> shards;
+    private final AtomicIntegerArray wanted; // 1 while a shard should be running
+    private final AtomicIntegerArray generations; // Bumped on every start and stop, older logins are dropped
+    private final NanoGuildLibrary[] guildLibraries;
+    private final ConversationListener conversationListener = new ConversationListener();
+
+    private String token;
+    private long identifyInterval;
+    private long nextIdentify; // Guarded by this
+    private ScheduledExecutorService logins;
+    private volatile BooleanSupplier identifyGate = () -> true;
+    private volatile boolean stopping;
+
+    public ShardRegistry(int shardTotal, long flushInterval, int flushBatch) {
+        if (shardTotal < 1) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        this.shardTotal = shardTotal;
+        this.shards = new AtomicReferenceArray<JDA>(shardTotal);
+        this.wanted = new AtomicIntegerArray(shardTotal);
+        this.generations = new AtomicIntegerArray(shardTotal);
+        this.guildLibraries = new NanoGuildLibrary[shardTotal];
+        for (int i = 0; i < shardTotal; i++) {
+            // With more than one shard every library only holds a part of the guild table
+            guildLibraries[i] = new NanoGuildLibrary(flushInterval, flushBatch, shardTotal > 1);
+        }
+    }
+
+    // Prepares logging in, shards are started separately
+    public synchronized void start(String token, long identifyInterval) {
+        this.token = token;
+        this.identifyInterval = identifyInterval;
+        logins = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "shard-login");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void startAll() {
+        for (int i = 0; i < shardTotal; i++) {
+            startShard(i);
+        }
+    }
+
+    public void startShard(int shardId) {
+        if (wanted.compareAndSet(shardId, 0, 1)) {
+            queueLogin(shardId, generations.incrementAndGet(shardId));
+        }
+    }
+
+    // Disconnects the shard right away, its pending guild writes are flushed and its guilds forgotten on the login thread
+    public void stopShard(int shardId) {
+        if (wanted.compareAndSet(shardId, 1, 0)) {
+            generations.incrementAndGet(shardId);
+            JDA jda = shards.getAndSet(shardId, null);
+            if (jda != null) {
+                jda.shutdown(false); // Keep resources shared with the other shards
+            }
+            NanoPlayer.destroyAll(guildID -> shardFor(guildID) == shardId);
+            unload(shardId);
+            NanoLogger.info("Stopped shard {}", shardId);
+        }
+    }
+
+    // Runs before any later login of the shard, the caller doesn't wait on the database
+    private synchronized void unload(int shardId) {
+        if (stopping) {
+            return; // The libraries are flushed on shutdown
+        }
+        if (logins == null) {
+            guildLibraries[shardId].unload();
+        } else {
+            logins.execute(() -> guildLibraries[shardId].unload());
+        }
+    }
+
+    public boolean isRunning(int shardId) {
+        return wanted.get(shardId) == 1;
+    }
+
+    // Checked before every identify, e.g. to share the rate limit with other processes
+    public void setIdentifyGate(BooleanSupplier identifyGate) {
+        this.identifyGate = identifyGate;
+    }
+
+    // Discord's identify rate limit covers all shards, so logins share one schedule
+    private synchronized void queueLogin(int shardId, int generation) {
+        if (stopping) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long at = Math.max(now, nextIdentify);
+        nextIdentify = at + identifyInterval;
+        logins.schedule(() -> login(shardId, generation), at - now, TimeUnit.MILLISECONDS);
+    }
+
+    // Logins run one at a time, one that was queued before the latest start or stop of its shard is dropped
+    private void login(int shardId, int generation) {
+        if (stopping || wanted.get(shardId) == 0 || generations.get(shardId) != generation) {
+            return;
+        }
+        if (!identifyGate.getAsBoolean()) {
+            queueLogin(shardId, generation);
+            return;
+        }
+        NanoLogger.info("Starting shard {} of {}", shardId, shardTotal);
+        NanoGuildLibrary guildLibrary = guildLibraries[shardId];
+        CommandListener commandListener = new CommandListener(guildLibrary);
+        JDABuilder builder = new JDABuilder(AccountType.BOT)
+                .setToken(token)
+                .setAutoReconnect(true)
+                .addListener(commandListener, new MessageDispatcher(guildLibrary, commandListener, conversationListener), new ShardListener(shardId));
+        if (shardTotal > 1) {
+            builder.useSharding(shardId, shardTotal);
+        }
+        try {
+            JDA jda = builder.buildAsync();
+            shards.set(shardId, jda);
+            if (generations.get(shardId) != generation && shards.compareAndSet(shardId, jda, null)) {
+                jda.shutdown(false); // Stopped while logging in
+            }
+        } catch (LoginException e) {
+            NanoLogger.error("Shard {} failed to log in: {}", shardId, e.getMessage());
+        } catch (RateLimitedException e) {
+            NanoLogger.warning("Shard {} was rate limited logging in, retrying", shardId);
+            queueLogin(shardId, generation);
+        }
+    }
+
+    // Registers a shard that was built elsewhere
+    public void attach(int shardId, JDA jda) {
+        shards.set(shardId, jda);
+    }
+
+    public int getShardTotal() {
+        return shardTotal;
+    }
+
+    // Same formula Discord uses to assign guilds to shards
+    public int shardFor(long guildID) {
+        return (int) ((guildID >>> 22) % shardTotal);
+    }
+
+    public JDA getShard(int shardId) {
+        return shards.get(shardId);
+    }
+
+    public JDA getShardForGuild(long guildID) {
+        return shards.get(shardFor(guildID));
+    }
+
+    public List<JDA> getShards() {
+        List<JDA> list = new ArrayList<JDA>(shardTotal);
+        for (int i = 0; i < shardTotal; i++) {
+            JDA jda = shards.get(i);
+            if (jda != null) list.add(jda);
+        }
+        return list;
+    }
+
+    public NanoGuildLibrary getGuildLibrary(long guildID) {
+        return guildLibraries[shardFor(guildID)];
+    }
+
+    public NanoGuildLibrary getShardGuildLibrary(int shardId) {
+        return guildLibraries[shardId];
+    }
+
+    // The bot user is the same on every shard, null until one of this process' shards logged in
+    public User getSelfUser() {
+        for (int i = 0; i < shardTotal; i++) {
+            JDA jda = shards.get(i);
+            if (jda != null && jda.getStatus() == JDA.Status.CONNECTED) return jda.getSelfUser();
+        }
+        // Reconnecting, in cluster mode shard 0 may belong to another process
+        for (int i = 0; i < shardTotal; i++) {
+            JDA jda = shards.get(i);
+            if (jda != null) {
+                User self = jda.getSelfUser();
+                if (self != null) return self;
+            }
+        }
+        return null;
+    }
+
+    public int getConnectedCount() {
+        int connected = 0;
+        for (int i = 0; i < shardTotal; i++) {
+            JDA jda = shards.get(i);
+            if (jda != null && jda.getStatus() == JDA.Status.CONNECTED) connected++;
+        }
+        return connected;
+    }
+
+    public int getPendingGuildWrites() {
+        int pending = 0;
+        for (NanoGuildLibrary guildLibrary : guildLibraries) {
+            pending += guildLibrary.getWriter().getPendingCount();
+        }
+        return pending;
+    }
+
+    // Stops rebuilding shards and writes everything still queued, called on shutdown
+    public void shutdown() {
+        stopping = true;
+        synchronized (this) {
+            if (logins != null) logins.shutdownNow();
+        }
+        for (NanoGuildLibrary guildLibrary : guildLibraries) {
+            guildLibrary.shutdown();
+        }
+    }
+
+    private class ShardListener extends ListenerAdapter {
+
+        private final int shardId;
+
+        ShardListener(int shardId) {
+            this.shardId = shardId;
+        }
+
+        @Override
+        public void onReady(ReadyEvent event) {
+            NanoLogger.info("Shard {} is ready with {} guilds", shardId, event.getJDA().getGuilds().size());
+        }
+
+        @Override
+        public void onDisconnect(DisconnectEvent event) {
+            NanoLogger.warning("Shard {} disconnected", shardId);
+        }
+
+        @Override
+        public void onShutdown(ShutdownEvent event) {
+            // Gave up reconnecting, only this shard is rebuilt. A stop in between makes the login stale
+            int generation = generations.get(shardId);
+            if (!stopping && wanted.get(shardId) == 1 && shards.compareAndSet(shardId, event.getJDA(), null)) {
+                NanoLogger.warning("Shard {} shut down, logging in again", shardId);
+                NanoPlayer.destroyAll(guildID -> shardFor(guildID) == shardId); // Bound to the old connection
+                queueLogin(shardId, generation);
+            }
+        }
+    }
+}
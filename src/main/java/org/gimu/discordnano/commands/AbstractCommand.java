@@ -25,7 +25,10 @@ public abstract class AbstractCommand implements CommandExecutor {
     private String usage;
     private String alias;
     private NanoPermission permission;
+    private CommandThrottle throttle;
+    private String usageMessage = "";
     private HashMap<String, AbstractSubCommand> subCommandMap = new HashMap<String, AbstractSubCommand>();
+    private CommandTrie<AbstractSubCommand> subCommandTrie = new CommandTrie<AbstractSubCommand>();
 
     public AbstractCommand(String description, String usage, String alias) {
         this.description = description;
@@ -34,7 +37,11 @@ public abstract class AbstractCommand implements CommandExecutor {
     }
 
     public void addSubCommand(String alias, AbstractSubCommand subCommand) {
+        if (subCommand.getName() == null) {
+            subCommand.setName(this.alias + " " + alias);
+        }
         subCommandMap.put(alias, subCommand);
+        subCommandTrie.put(alias, subCommand);
     }
 
     public boolean hasSubCommand(String input) {
@@ -45,6 +52,10 @@ public abstract class AbstractCommand implements CommandExecutor {
         return subCommandMap.get(input);
     }
 
+    public AbstractSubCommand getSubCommand(CharSequence input, int start, int end) {
+        return subCommandTrie.get(input, start, end);
+    }
+
     public String getDescription() {
         return description;
     }
@@ -53,6 +64,31 @@ public abstract class AbstractCommand implements CommandExecutor {
         return usage;
     }
 
+    // Usage reply sent on invalid arguments, rendered once at registration
+    public String getUsageMessage() {
+        return usageMessage;
+    }
+
+    void renderUsage(String prefix) {
+        if (!usage.isEmpty()) {
+            usageMessage = "`" + prefix + usage + "`";
+            return;
+        }
+
+        // Fall back to the usage descriptions of the sub commands
+        Set<String> usages = new LinkedHashSet<String>();
+        for (AbstractSubCommand subCommand : subCommandMap.values()) {
+            if (!subCommand.getUsageMessage().isEmpty()) {
+                usages.add(subCommand.getUsageMessage());
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String line : usages) {
+            sb.append(line).append('\n');
+        }
+        usageMessage = sb.toString();
+    }
+
     public String getAlias() {
         return alias;
     }
@@ -68,4 +104,13 @@ public abstract class AbstractCommand implements CommandExecutor {
     public void setPermission(NanoPermission permission) {
         this.permission = permission;
     }
+
+    // Null for commands that aren't throttled
+    public CommandThrottle getThrottle() {
+        return throttle;
+    }
+
+    void setThrottle(CommandThrottle throttle) {
+        this.throttle = throttle;
+    }
 }
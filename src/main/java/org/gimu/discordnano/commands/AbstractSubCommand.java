@@ -21,7 +21,10 @@ public abstract class AbstractSubCommand implements CommandExecutor {
 
     private String description;
     private String usage;
+    private String usageMessage = "";
     private List<String> aliases;
+    private String name;
+    private CommandThrottle throttle;
 
     public AbstractSubCommand(String description, String usage) {
         this.description = description;
@@ -36,7 +39,33 @@ public abstract class AbstractSubCommand implements CommandExecutor {
         return usage;
     }
 
+    public String getUsageMessage() {
+        return usageMessage;
+    }
+
+    void renderUsage(String prefix) {
+        usageMessage = usage.isEmpty() ? "" : "`" + prefix + usage + "`";
+    }
+
     public List<String> getAliases() {
         return aliases;
     }
+
+    // Main command alias and the alias this sub command was first registered with
+    public String getName() {
+        return name;
+    }
+
+    void setName(String name) {
+        this.name = name;
+    }
+
+    // Null for commands that aren't throttled
+    public CommandThrottle getThrottle() {
+        return throttle;
+    }
+
+    void setThrottle(CommandThrottle throttle) {
+        this.throttle = throttle;
+    }
 }
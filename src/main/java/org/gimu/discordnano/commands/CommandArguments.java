@@ -0,0 +1,125 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.commands;
+
+import java.util.Arrays;
+
+/**
+ * Lazy view over the arguments following a command alias. The message is only
+ * tokenized on first access and single arguments are cut out on demand;
+ * double-quoted arguments may contain whitespace.
+ */
+public class CommandArguments {
+
+    private static final int[] NO_BOUNDS = new int[0];
+
+    private final String content;
+    private final int offset;
+    private int[] bounds; // start/end pairs into content
+    private int size = -1;
+
+    public CommandArguments(String content, int offset) {
+        this.content = content;
+        this.offset = offset;
+    }
+
+    public int size() {
+        tokenize();
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public String get(int index) {
+        tokenize();
+        if (index < 0 || index >= size) {
+            throw new IllegalArgumentException("Missing argument " + index);
+        }
+        return content.substring(bounds[index * 2], bounds[index * 2 + 1]);
+    }
+
+    public String get(int index, String fallback) {
+        return index < size() ? get(index) : fallback;
+    }
+
+    // Everything from the given argument to the end of the message, as typed
+    public String join(int from) {
+        tokenize();
+        if (from >= size) {
+            return "";
+        }
+        int start = bounds[from * 2];
+        if (start > 0 && content.charAt(start - 1) == '"') {
+            start--;
+        }
+        return content.substring(start).trim();
+    }
+
+    public String getRaw() {
+        return offset < content.length() ? content.substring(offset).trim() : "";
+    }
+
+    public String[] toArray() {
+        String[] args = new String[size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = get(i);
+        }
+        return args;
+    }
+
+    private void tokenize() {
+        if (size >= 0) {
+            return;
+        }
+        int[] b = NO_BOUNDS;
+        int n = 0;
+        int i = offset;
+        int length = content.length();
+        while (true) {
+            while (i < length && Character.isWhitespace(content.charAt(i))) i++;
+            if (i >= length) {
+                break;
+            }
+            int start;
+            int end;
+            if (content.charAt(i) == '"') {
+                start = ++i;
+                while (i < length && content.charAt(i) != '"') i++;
+                end = i;
+                if (i < length) i++; // Closing quote
+            } else {
+                start = i;
+                while (i < length && !Character.isWhitespace(content.charAt(i))) i++;
+                end = i;
+            }
+            if (n * 2 == b.length) {
+                b = Arrays.copyOf(b, Math.max(8, b.length * 2));
+            }
+            b[n * 2] = start;
+            b[n * 2 + 1] = end;
+            n++;
+        }
+        bounds = b;
+        size = n;
+    }
+
+    @Override
+    public String toString() {
+        return getRaw();
+    }
+}
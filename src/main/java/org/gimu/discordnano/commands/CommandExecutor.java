@@ -23,6 +23,6 @@ import java.util.Optional;
 
 @FunctionalInterface
 public interface CommandExecutor {
-    Optional<Message> execute(User author, Message message, String[] args) throws IllegalArgumentException, RateLimitedException;
+    Optional<Message> execute(User author, Message message, CommandArguments args) throws IllegalArgumentException, RateLimitedException;
 }
 
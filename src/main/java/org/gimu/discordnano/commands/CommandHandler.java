@@ -19,19 +19,36 @@ import net.dv8tion.jda.core.entities.Message;
 import net.dv8tion.jda.core.entities.User;
 import net.dv8tion.jda.core.exceptions.RateLimitedException;
 import org.gimu.discordnano.DiscordNano;
+import org.gimu.discordnano.lib.NanoMetrics;
 import org.gimu.discordnano.lib.NanoPermission;
 
-import java.util.*;
+import java.util.HashMap;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class CommandHandler {
 
     public static HashMap<String, AbstractCommand> mainCommandMap = new HashMap<String, AbstractCommand>();
+    private static CommandTrie<AbstractCommand> mainCommandTrie = new CommandTrie<AbstractCommand>();
+    private static AtomicBoolean registered = new AtomicBoolean();
+
+    private static final NanoMetrics.Histogram executionTime = NanoMetrics.histogram("nano_command_seconds", "Command execution time", "command");
+    private static final NanoMetrics.Counter failures = NanoMetrics.counter("nano_command_failures_total", "Commands that did not run through", "command", "reason");
+
+    // Registers every annotated command once, later ready events (reconnects) are no-ops
+    public void registerCommands() {
+        if (registered.compareAndSet(false, true)) {
+            CommandRegistry.registerAll(this);
+        }
+    }
 
     public boolean addMainCommand(String alias, AbstractCommand command) {
         if (mainCommandMap.get(alias) != null) {
             return false;
         } else {
             mainCommandMap.put(alias, command);
+            mainCommandTrie.put(alias, command);
+            command.renderUsage(DiscordNano.PREFIX);
             return true;
         }
     }
@@ -39,54 +56,91 @@ public class CommandHandler {
     public boolean addSubCommand(String alias, String mainCommandAlias, AbstractSubCommand command) {
         AbstractCommand mainCommand = mainCommandMap.get(mainCommandAlias);
         if (mainCommand != null) {
+            command.renderUsage(DiscordNano.PREFIX);
             mainCommand.addSubCommand(alias, command);
+            mainCommand.renderUsage(DiscordNano.PREFIX);
             return true;
         }
         return false;
     }
 
     public void parseMessage(Message message) throws IllegalArgumentException {
-        String[] sections = message.getContent().split(" "); // Split message by whitespace
-        String commandString = sections[0].replace(DiscordNano.PREFIX, ""); // Main command
-        String subcommandString = (sections.length >= 2) ? sections[1] : ""; // Sub command
+        String content = message.getContent();
+        String prefix = DiscordNano.PREFIX;
+        if (!content.startsWith(prefix)) return;
 
         // Main command parsing
-        AbstractCommand mainCommand = mainCommandMap.get(commandString.toLowerCase());
+        int commandStart = prefix.length();
+        int commandEnd = tokenEnd(content, commandStart);
+        AbstractCommand mainCommand = mainCommandTrie.get(content, commandStart, commandEnd);
 
         if (mainCommand != null) {
             // Sub command parsing
-            AbstractSubCommand subCommand = mainCommand.getSubCommand(subcommandString);
+            int subcommandStart = skipWhitespace(content, commandEnd);
+            int subcommandEnd = tokenEnd(content, subcommandStart);
+            AbstractSubCommand subCommand = mainCommand.getSubCommand(content, subcommandStart, subcommandEnd);
 
+            if (subCommand != null ? !admit(subCommand.getThrottle(), subCommand.getName(), message)
+                    : !admit(mainCommand.getThrottle(), mainCommand.getAlias(), message)) {
+                return;
+            }
+
+            long start = System.nanoTime();
             if (subCommand != null) {
                 try {
-                    parseSubCommand(subCommand, message, sections);
+                    parseSubCommand(subCommand, message, new CommandArguments(content, subcommandEnd));
                 } catch (IllegalArgumentException e) {
-                    if (!subCommand.getUsage().isEmpty()) message.getChannel().sendMessage("`" + DiscordNano.PREFIX + subCommand.getUsage() + "`").queue();
+                    failures.inc(subCommand.getName(), "usage");
+                    if (!subCommand.getUsageMessage().isEmpty()) DiscordNano.outbound.send(message.getChannel(), subCommand.getUsageMessage());
                 } catch (RateLimitedException e) {
-                    message.getChannel().sendMessage("Rate limit exceeded, try again later.");
+                    failures.inc(subCommand.getName(), "rate_limited");
+                    DiscordNano.outbound.send(message.getChannel(), "Rate limit exceeded, try again later.");
+                } finally {
+                    executionTime.observeSince(start, subCommand.getName());
                 }
             } else {
                 try {
-                    parseMainCommand(mainCommand, message, sections);
+                    parseMainCommand(mainCommand, message, new CommandArguments(content, commandEnd));
                 } catch (IllegalArgumentException e) {
-                    if (!mainCommand.getUsage().isEmpty()) {
-                        message.getChannel().sendMessage("`" + DiscordNano.PREFIX + mainCommand.getUsage() + "`").queue();
-                    } else {
-                        // Look for usage descriptions in sub commands
-                        StringBuilder sb = new StringBuilder();
-                        mainCommand.getSubCommandMap().entrySet().stream().filter(entry -> !entry.getValue().getUsage().isEmpty()).forEach(entry -> sb.append("`" + DiscordNano.PREFIX + entry.getValue().getUsage() + "`\n"));
-                        message.getChannel().sendMessage(sb.toString()).queue();
-                    }
+                    failures.inc(mainCommand.getAlias(), "usage");
+                    // Falls back to the usage descriptions of the sub commands
+                    if (!mainCommand.getUsageMessage().isEmpty()) DiscordNano.outbound.send(message.getChannel(), mainCommand.getUsageMessage());
                 } catch (RateLimitedException e) {
-                    message.getChannel().sendMessage("Rate limit exceeded, try again later.");
+                    failures.inc(mainCommand.getAlias(), "rate_limited");
+                    DiscordNano.outbound.send(message.getChannel(), "Rate limit exceeded, try again later.");
+                } finally {
+                    executionTime.observeSince(start, mainCommand.getAlias());
                 }
             }
         }
 
     }
 
-    private void parseMainCommand(AbstractCommand mainCommand, Message message, String[] sections) throws IllegalArgumentException, RateLimitedException {
-        String[] args = (sections.length >= 1) ? Arrays.copyOfRange(sections, 1, sections.length) : new String[0]; // Only arguments (excludes main command alias)
+    // Checks the user and guild budgets before anything expensive runs, the bot owner is exempt
+    private static boolean admit(CommandThrottle throttle, String command, Message message) {
+        if (throttle == null) return true;
+        String author = message.getAuthor().getId();
+        if (author.equals(DiscordNano.BOT_OWNER)) return true;
+
+        // Neither budget is charged for a command the other one rejects
+        CommandThrottle.Result result = throttle.checkUser(author);
+        String reason = "user_throttled";
+        if (result == CommandThrottle.Result.ALLOWED) {
+            result = throttle.acquireGuild(message.getGuild().getId());
+            reason = "guild_throttled";
+        }
+        if (result == CommandThrottle.Result.ALLOWED) {
+            result = throttle.acquireUser(author);
+            reason = "user_throttled";
+        }
+        if (result == CommandThrottle.Result.ALLOWED) return true;
+
+        failures.inc(command, reason);
+        if (result == CommandThrottle.Result.REJECTED) DiscordNano.outbound.react(message, "⏱");
+        return false;
+    }
+
+    private void parseMainCommand(AbstractCommand mainCommand, Message message, CommandArguments args) throws IllegalArgumentException, RateLimitedException {
         NanoPermission permission = mainCommand.getPermission();
         User author = message.getAuthor();
         Optional<Message> response = null;
@@ -96,14 +150,16 @@ public class CommandHandler {
             if (author.getId().equals(DiscordNano.BOT_OWNER)) {
                 response = mainCommand.execute(author, message, args);
             } else {
-                message.addReaction("⛔").queue();
+                failures.inc(mainCommand.getAlias(), "denied");
+                DiscordNano.outbound.react(message, "⛔");
             }
         } else if (permission == NanoPermission.GUILD_OWNER) {
             // Guild owner specific main command
             if (author.getId().equals(DiscordNano.BOT_OWNER) || author.getId().equals(message.getGuild().getOwner().getUser().getId())) {
                 response = mainCommand.execute(author, message, args);
             } else {
-                message.addReaction("⛔").queue();
+                failures.inc(mainCommand.getAlias(), "denied");
+                DiscordNano.outbound.react(message, "⛔");
             }
         } else {
             response = mainCommand.execute(author, message, args);
@@ -111,17 +167,28 @@ public class CommandHandler {
 
         if (response != null && response.isPresent()) {
             Message responseMessage = response.get();
-            message.getChannel().sendMessage(responseMessage).queue();
+            DiscordNano.outbound.send(message.getChannel(), responseMessage);
         }
     }
 
-    private void parseSubCommand(AbstractSubCommand subCommand, Message message, String[] sections) throws IllegalArgumentException, RateLimitedException {
-        String[] args = (sections.length >= 2) ? Arrays.copyOfRange(sections, 2, sections.length) : new String[0]; // Only arguments (excludes sub command alias)
+    private void parseSubCommand(AbstractSubCommand subCommand, Message message, CommandArguments args) throws IllegalArgumentException, RateLimitedException {
         Optional<Message> response = subCommand.execute(message.getAuthor(), message, args);
 
         if (response.isPresent()) {
             Message responseMessage = response.get();
-            message.getChannel().sendMessage(responseMessage).queue();
+            DiscordNano.outbound.send(message.getChannel(), responseMessage);
         }
     }
+
+    private static int tokenEnd(String content, int from) {
+        int i = from;
+        while (i < content.length() && !Character.isWhitespace(content.charAt(i))) i++;
+        return i;
+    }
+
+    private static int skipWhitespace(String content, int from) {
+        int i = from;
+        while (i < content.length() && Character.isWhitespace(content.charAt(i))) i++;
+        return i;
+    }
 }
@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.commands;
+
+import org.gimu.discordnano.lib.NanoLogger;
+import org.gimu.discordnano.lib.NanoMetrics;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs parsed commands off the JDA event thread. Every key (guild) is pinned
+ * to one single-threaded stripe, so commands of a guild run in the order they
+ * were received while different guilds run in parallel. Each stripe has a
+ * bounded queue; {@link #submit} returns false once it is full.
+ */
+public class CommandScheduler {
+
+    private static final NanoMetrics.Histogram.Child queueTime = NanoMetrics.histogram("nano_command_queue_seconds", "Time commands waited for their worker").labels();
+
+    private final ThreadPoolExecutor[] stripes;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    public CommandScheduler(int workers, int queueSize) {
+        stripes = new ThreadPoolExecutor[workers];
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory factory = runnable -> {
+            Thread thread = new Thread(runnable, "command-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        for (int i = 0; i < workers; i++) {
+            stripes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize), factory, new ThreadPoolExecutor.AbortPolicy());
+        }
+    }
+
+    public boolean submit(String key, Runnable task) {
+        ThreadPoolExecutor stripe = stripes[(key.hashCode() & 0x7fffffff) % stripes.length];
+        long queuedAt = System.nanoTime();
+        try {
+            stripe.execute(() -> {
+                long wait = System.nanoTime() - queuedAt;
+                totalWaitNanos.add(wait);
+                started.increment();
+                maxWaitNanos.accumulateAndGet(wait, Math::max);
+                queueTime.observeNanos(wait);
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    NanoLogger.error("Command failed", e);
+                } finally {
+                    completed.increment();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            return false;
+        }
+        submitted.increment();
+        return true;
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ThreadPoolExecutor stripe : stripes) {
+            depth += stripe.getQueue().size();
+        }
+        return depth;
+    }
+
+    public int getMaxStripeDepth() {
+        int depth = 0;
+        for (ThreadPoolExecutor stripe : stripes) {
+            depth = Math.max(depth, stripe.getQueue().size());
+        }
+        return depth;
+    }
+
+    public long getSubmittedCount() {
+        return submitted.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getCompletedCount() {
+        return completed.sum();
+    }
+
+    public double getAverageWaitMillis() {
+        long count = started.sum();
+        return count == 0 ? 0 : totalWaitNanos.sum() / (double) count / 1_000_000;
+    }
+
+    // Longest time a command sat in its queue since startup, reading doesn't reset it
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1_000_000.0;
+    }
+
+    public void shutdown() {
+        for (ThreadPoolExecutor stripe : stripes) {
+            stripe.shutdown();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.commands;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per user and per guild budgets of a command. Each bucket is a single atomic
+ * timestamp (generic cell rate algorithm), so checks are one compare-and-set.
+ * Buckets expire once they would be full again.
+ */
+public class CommandThrottle {
+
+    private static final int MAX_BUCKETS = 10000;
+
+    public enum Result {
+        ALLOWED,
+        // Rejected for the first time since the last allowed command, worth telling the user
+        REJECTED,
+        REJECTED_QUIETLY
+    }
+
+    private final Budget user;
+    private final Budget guild;
+
+    // Bursts of 0 disable the limit of that scope
+    public CommandThrottle(int userBurst, long userInterval, int guildBurst, long guildInterval) {
+        this.user = Budget.of(userBurst, userInterval);
+        this.guild = Budget.of(guildBurst, guildInterval);
+    }
+
+    public Result acquireUser(String userID) {
+        return user == null ? Result.ALLOWED : user.acquire(userID, true);
+    }
+
+    // Same verdict as acquireUser without using up the budget
+    public Result checkUser(String userID) {
+        return user == null ? Result.ALLOWED : user.acquire(userID, false);
+    }
+
+    public Result acquireGuild(String guildID) {
+        return guild == null ? Result.ALLOWED : guild.acquire(guildID, true);
+    }
+
+    public long getBucketCount() {
+        return (user == null ? 0 : user.buckets.estimatedSize()) + (guild == null ? 0 : guild.buckets.estimatedSize());
+    }
+
+    private static final class Budget {
+
+        private final long interval;
+        private final long tolerance;
+        private final Cache<String, Bucket> buckets;
+
+        private Budget(int burst, long interval) {
+            this.interval = TimeUnit.MILLISECONDS.toNanos(interval);
+            this.tolerance = (burst - 1) * this.interval;
+            this.buckets = Caffeine.newBuilder()
+                    .maximumSize(MAX_BUCKETS)
+                    .expireAfterAccess(burst * this.interval, TimeUnit.NANOSECONDS)
+                    .build();
+        }
+
+        static Budget of(int burst, long interval) {
+            return burst > 0 && interval > 0 ? new Budget(burst, interval) : null;
+        }
+
+        Result acquire(String key, boolean charge) {
+            Bucket bucket = buckets.getIfPresent(key);
+            if (bucket == null) {
+                bucket = buckets.get(key, k -> new Bucket());
+            }
+            long now = System.nanoTime();
+            while (true) {
+                long arrival = bucket.get();
+                long next = arrival - now > 0 ? arrival : now;
+                if (next - now > tolerance) {
+                    // Only the first rejection per allowed command is reported
+                    if (bucket.notified == arrival) {
+                        return Result.REJECTED_QUIETLY;
+                    }
+                    bucket.notified = arrival;
+                    return Result.REJECTED;
+                }
+                if (!charge || bucket.compareAndSet(arrival, next + interval)) {
+                    return Result.ALLOWED;
+                }
+            }
+        }
+    }
+
+    // Theoretical arrival time of the next command
+    private static final class Bucket extends AtomicLong {
+
+        volatile long notified;
+
+        Bucket() {
+            super(System.nanoTime());
+            notified = get() - 1;
+        }
+    }
+}
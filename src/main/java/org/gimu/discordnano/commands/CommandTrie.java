@@ -0,0 +1,93 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.commands;
+
+import java.util.Arrays;
+
+/**
+ * Case-insensitive alias lookup that matches directly over a region of the
+ * raw message, so dispatching a command never has to cut or lower-case the
+ * message content.
+ */
+public class CommandTrie<T> {
+
+    private final Node<T> root = new Node<T>();
+
+    public boolean put(String alias, T value) {
+        Node<T> node = root;
+        for (int i = 0; i < alias.length(); i++) {
+            node = node.childOrCreate(fold(alias.charAt(i)));
+        }
+        if (node.value != null) {
+            return false;
+        }
+        node.value = value;
+        return true;
+    }
+
+    public T get(CharSequence input, int start, int end) {
+        Node<T> node = root;
+        for (int i = start; i < end && node != null; i++) {
+            node = node.child(fold(input.charAt(i)));
+        }
+        return node != null ? node.value : null;
+    }
+
+    public T get(String alias) {
+        return get(alias, 0, alias.length());
+    }
+
+    private static char fold(char c) {
+        if (c < 128) {
+            return (c >= 'A' && c <= 'Z') ? (char) (c + 32) : c;
+        }
+        return Character.toLowerCase(c);
+    }
+
+    private static class Node<T> {
+
+        private char[] keys = new char[0];
+        private Node<T>[] children = newArray(0);
+        private T value;
+
+        Node<T> child(char c) {
+            char[] k = keys;
+            for (int i = 0; i < k.length; i++) {
+                if (k[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node<T> childOrCreate(char c) {
+            Node<T> node = child(c);
+            if (node == null) {
+                node = new Node<T>();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                keys[keys.length - 1] = c;
+                children = Arrays.copyOf(children, children.length + 1);
+                children[children.length - 1] = node;
+            }
+            return node;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> Node<T>[] newArray(int size) {
+            return (Node<T>[]) new Node[size];
+        }
+    }
+}
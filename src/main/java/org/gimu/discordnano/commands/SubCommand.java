@@ -32,4 +32,14 @@ public @interface SubCommand {
 
     String usage() default "";
 
+    // Commands one user may run in a row, then one more every userInterval milliseconds, 0 disables
+    int userBurst() default 5;
+
+    long userInterval() default 3000;
+
+    // Same for all users of a guild together
+    int guildBurst() default 30;
+
+    long guildInterval() default 500;
+
 }
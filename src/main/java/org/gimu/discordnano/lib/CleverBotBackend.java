@@ -0,0 +1,37 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.lib;
+
+import com.google.code.chatterbotapi.ChatterBot;
+import com.google.code.chatterbotapi.ChatterBotFactory;
+import com.google.code.chatterbotapi.ChatterBotType;
+
+public class CleverBotBackend implements ConversationBackend {
+
+    private ChatterBot bot;
+
+    @Override
+    public Session createSession() throws Exception {
+        return getBot().createSession()::think;
+    }
+
+    private synchronized ChatterBot getBot() throws Exception {
+        if (bot == null) {
+            bot = new ChatterBotFactory().create(ChatterBotType.CLEVERBOT);
+        }
+        return bot;
+    }
+}
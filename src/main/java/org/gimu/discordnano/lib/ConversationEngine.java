@@ -0,0 +1,208 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.lib;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Answers conversation messages asynchronously. Sessions are kept per channel
+ * (least recently used ones are dropped, as are idle ones), remote calls run
+ * on a bounded pool with a timeout and every guild may only have a few
+ * conversations in flight at once. A call counts against its guild until it
+ * actually returned, also when its caller already got a timeout.
+ */
+public class ConversationEngine {
+
+    private final ConversationBackend backend;
+    private final int maxSessions;
+    private final long idleTimeout;
+    private final long timeout;
+    private final int guildLimit;
+
+    private final LinkedHashMap<String, SessionEntry> sessions;
+    private final ConcurrentHashMap<String, Integer> inFlight = new ConcurrentHashMap<String, Integer>();
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService scheduler;
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    public ConversationEngine(ConversationBackend backend, int maxSessions, long idleTimeout, int threads, int queueSize, long timeout, int guildLimit) {
+        this.backend = backend;
+        this.maxSessions = maxSessions;
+        this.idleTimeout = idleTimeout;
+        this.timeout = timeout;
+        this.guildLimit = guildLimit;
+
+        sessions = new LinkedHashMap<String, SessionEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SessionEntry> eldest) {
+                return size() > ConversationEngine.this.maxSessions;
+            }
+        };
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize), runnable -> {
+            Thread thread = new Thread(runnable, "conversation-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "conversation-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::evictIdle, idleTimeout, Math.max(1000, idleTimeout / 2), TimeUnit.MILLISECONDS);
+    }
+
+    // Completes with the reply, or exceptionally when rejected (RejectedExecutionException), timed out or failed
+    public CompletableFuture<String> think(String guildID, String channelID, String input) {
+        CompletableFuture<String> result = new CompletableFuture<String>();
+
+        if (inFlight.merge(guildID, 1, Integer::sum) > guildLimit) {
+            release(guildID);
+            rejected.increment();
+            result.completeExceptionally(new RejectedExecutionException("Too many conversations in guild " + guildID));
+            return result;
+        }
+
+        // Whoever claims the call first releases the slot: the task once it ran, or the timeout if it never started
+        AtomicBoolean claimed = new AtomicBoolean();
+        Future<?> task;
+        try {
+            task = executor.submit(() -> {
+                if (!claimed.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    SessionEntry entry = getSession(channelID);
+                    synchronized (entry) { // Sessions are not thread safe
+                        entry.lastUsed = System.currentTimeMillis();
+                        result.complete(entry.session.think(input));
+                    }
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                } finally {
+                    release(guildID);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            release(guildID);
+            rejected.increment();
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        ScheduledFuture<?> timer = scheduler.schedule(() -> {
+            if (result.completeExceptionally(new TimeoutException("No reply within " + timeout + " ms"))) {
+                timedOut.increment();
+                if (claimed.compareAndSet(false, true)) {
+                    task.cancel(false);
+                    release(guildID);
+                } else {
+                    task.cancel(true); // Blocking I/O may ignore this, the slot stays taken until it returns
+                }
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        result.whenComplete((response, error) -> timer.cancel(false));
+        return result;
+    }
+
+    private SessionEntry getSession(String channelID) throws Exception {
+        synchronized (sessions) {
+            SessionEntry entry = sessions.get(channelID);
+            if (entry != null) {
+                return entry;
+            }
+        }
+
+        // Created outside the lock, the backend may call out to the network
+        SessionEntry created = new SessionEntry(backend.createSession());
+        synchronized (sessions) {
+            SessionEntry entry = sessions.get(channelID);
+            if (entry == null) {
+                sessions.put(channelID, created);
+                entry = created;
+            }
+            return entry;
+        }
+    }
+
+    private void release(String guildID) {
+        inFlight.computeIfPresent(guildID, (id, count) -> count > 1 ? count - 1 : null);
+    }
+
+    private void evictIdle() {
+        long idleSince = System.currentTimeMillis() - idleTimeout;
+        synchronized (sessions) {
+            Iterator<SessionEntry> iterator = sessions.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().lastUsed < idleSince) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    public int getSessionCount() {
+        synchronized (sessions) {
+            return sessions.size();
+        }
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public int getInFlightCount(String guildID) {
+        Integer count = inFlight.get(guildID);
+        return count == null ? 0 : count;
+    }
+
+    public long getTimedOutCount() {
+        return timedOut.sum();
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    private static class SessionEntry {
+
+        private final ConversationBackend.Session session;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        SessionEntry(ConversationBackend.Session session) {
+            this.session = session;
+        }
+    }
+}
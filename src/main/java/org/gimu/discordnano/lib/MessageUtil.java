@@ -16,6 +16,8 @@
 
 package org.gimu.discordnano.lib;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import net.dv8tion.jda.core.EmbedBuilder;
 import net.dv8tion.jda.core.MessageBuilder;
 import net.dv8tion.jda.core.entities.Message;
@@ -24,9 +26,19 @@ import org.gimu.discordnano.DiscordNano;
 
 import java.awt.*;
 import java.util.List;
+import java.util.Objects;
 
 public class MessageUtil {
 
+    private static final String URL = "https://www.gimu.org/discord-nano";
+
+    // Author block of every framed message, rebuilt after the bot's profile changed
+    private static volatile Frame frame;
+
+    private static final Cache<String, Footer> footers = Caffeine.newBuilder()
+            .maximumSize(DiscordNano.config.optInt("embed_footer_cache_size", 1000))
+            .build();
+
     public static Message buildMessage(String content) {
         MessageBuilder mb = new MessageBuilder();
         mb.appendString(content);
@@ -46,19 +58,14 @@ public class MessageUtil {
     }
 
     public static Message buildFramedMessage(User author, String content, List<Pair<String, String>> subContent, String imageUrl, boolean inline) {
-        User bot = DiscordNano.bot.getSelfUser();
-        String avatar = bot.getAvatarUrl();
-        if (avatar == null) {
-            avatar = bot.getDefaultAvatarUrl();
-        }
+        Frame frame = getFrame();
         EmbedBuilder eb = new EmbedBuilder();
-        eb.setAuthor(bot.getName(), null, avatar);
+        if (frame != null) {
+            eb.setAuthor(frame.name, null, frame.avatar);
+        }
         eb.setDescription(content);
         eb.setColor(Color.ORANGE);
-        eb.setUrl("https://www.gimu.org/discord-nano");
-        /*String thumb = bot.getAvatarUrl();
-        if (thumb != null)
-            eb.setThumbnail(thumb);*/
+        eb.setUrl(URL);
 
         if (subContent != null) {
             for (Pair<String, String> pair : subContent) {
@@ -67,21 +74,81 @@ public class MessageUtil {
         }
 
         if (imageUrl != null) {
-            if (!imageUrl.contains("https")) imageUrl = imageUrl.replaceAll("http", "https");
+            if (imageUrl.startsWith("http://")) imageUrl = "https://" + imageUrl.substring(7);
             eb.setImage(imageUrl);
         }
 
         // Requester information
         if (author != null) {
-            String authorAvatar = author.getAvatarUrl();
-            if (authorAvatar == null) {
-                authorAvatar = author.getDefaultAvatarUrl();
-            }
-            eb.setFooter("Requested by " + author.getName() + "#" + author.getDiscriminator(), authorAvatar);
+            Footer footer = getFooter(author);
+            eb.setFooter(footer.text, footer.avatar);
         }
 
         MessageBuilder mb = new MessageBuilder();
         mb.setEmbed(eb.build());
         return mb.build();
     }
+
+    // Called on self update events
+    public static void invalidateFrame() {
+        frame = null;
+    }
+
+    // Null while no shard knows the bot user yet, nothing is cached then
+    private static Frame getFrame() {
+        Frame current = frame;
+        if (current == null) {
+            User bot = DiscordNano.shards.getSelfUser();
+            if (bot == null) {
+                return null;
+            }
+            String avatar = bot.getAvatarUrl();
+            if (avatar == null) {
+                avatar = bot.getDefaultAvatarUrl();
+            }
+            current = new Frame(bot.getName(), avatar);
+            frame = current;
+        }
+        return current;
+    }
+
+    private static Footer getFooter(User author) {
+        Footer footer = footers.getIfPresent(author.getId());
+        // Rebuilt once the author changed their profile
+        if (footer == null || !Objects.equals(footer.name, author.getName()) || !Objects.equals(footer.discriminator, author.getDiscriminator())
+                || !Objects.equals(footer.avatarId, author.getAvatarId())) {
+            footer = new Footer(author);
+            footers.put(author.getId(), footer);
+        }
+        return footer;
+    }
+
+    private static final class Frame {
+
+        final String name;
+        final String avatar;
+
+        Frame(String name, String avatar) {
+            this.name = name;
+            this.avatar = avatar;
+        }
+    }
+
+    private static final class Footer {
+
+        final String name;
+        final String discriminator;
+        final String avatarId;
+        final String text;
+        final String avatar;
+
+        Footer(User user) {
+            name = user.getName();
+            discriminator = user.getDiscriminator();
+            avatarId = user.getAvatarId();
+            text = "Requested by " + name + "#" + discriminator;
+            String avatarUrl = user.getAvatarUrl();
+            avatar = avatarUrl != null ? avatarUrl : user.getDefaultAvatarUrl();
+        }
+    }
 }
@@ -0,0 +1,274 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.lib;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Case-folded trigram index over the music library titles. Substring lookups
+ * only verify the titles sharing the rarest trigram of the query instead of
+ * matching every title, ranked searches only score titles sharing at least
+ * one trigram with the query. Titles are identified by their insertion
+ * position.
+ */
+class MusicIndex {
+
+    // Ranked searches over larger libraries are split across cores
+    private static final int PARALLEL_THRESHOLD = 50000;
+
+    private final ArrayList<String> titles = new ArrayList<String>(); // Folded
+    private final HashMap<Long, Postings> postings = new HashMap<Long, Postings>();
+    private int[] trigramCounts = new int[16]; // Distinct trigrams per title
+
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    int add(String title) {
+        String folded = fold(title);
+        int id = titles.size();
+        titles.add(folded);
+
+        // Padded, so word boundaries and very short titles still produce trigrams
+        String padded = pad(folded);
+        int count = 0;
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            Long key = trigram(padded, i);
+            Postings list = postings.get(key);
+            if (list == null) {
+                list = new Postings();
+                postings.put(key, list);
+            }
+            if (list.add(id)) {
+                count++;
+            }
+        }
+        if (id == trigramCounts.length) {
+            trigramCounts = Arrays.copyOf(trigramCounts, id * 2);
+        }
+        trigramCounts[id] = count;
+        return id;
+    }
+
+    int size() {
+        return titles.size();
+    }
+
+    // Position of the first title containing the query, or -1
+    int find(String query) {
+        String folded = fold(query);
+        if (folded.isEmpty()) {
+            return titles.isEmpty() ? -1 : 0;
+        }
+
+        if (folded.length() < 3) {
+            // Too short for the index, scan until the first hit
+            for (int id = 0; id < titles.size(); id++) {
+                if (titles.get(id).contains(folded)) {
+                    return id;
+                }
+            }
+            return -1;
+        }
+
+        // Every match contains all trigrams of the query, so the rarest one bounds the candidates
+        Postings rarest = null;
+        for (int i = 0; i + 3 <= folded.length(); i++) {
+            Postings list = postings.get(trigram(folded, i));
+            if (list == null) {
+                return -1;
+            }
+            if (rarest == null || list.size < rarest.size) {
+                rarest = list;
+            }
+        }
+        for (int i = 0; i < rarest.size; i++) {
+            int id = rarest.ids[i];
+            if (titles.get(id).contains(folded)) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    // Positions of the best matches by trigram similarity (Dice coefficient), best first.
+    // Titles containing the query verbatim always rank above the others.
+    int[] search(String query, int limit, double minScore) {
+        String folded = fold(query);
+        if (folded.isEmpty() || limit <= 0) {
+            return new int[0];
+        }
+
+        String padded = pad(folded);
+        HashSet<Long> keys = new HashSet<Long>();
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            keys.add(trigram(padded, i));
+        }
+        List<Postings> lists = new ArrayList<Postings>(keys.size());
+        for (Long key : keys) {
+            Postings list = postings.get(key);
+            if (list != null) {
+                lists.add(list);
+            }
+        }
+        int queryCount = keys.size();
+
+        int size = titles.size();
+        List<Candidate> candidates;
+        if (size < PARALLEL_THRESHOLD) {
+            candidates = topCandidates(lists, folded, queryCount, 0, size, limit, minScore);
+        } else {
+            int chunks = Math.max(1, ForkJoinPool.getCommonPoolParallelism());
+            int chunkSize = (size + chunks - 1) / chunks;
+            candidates = IntStream.range(0, chunks).parallel()
+                    .mapToObj(chunk -> topCandidates(lists, folded, queryCount, chunk * chunkSize, Math.min(size, (chunk + 1) * chunkSize), limit, minScore))
+                    .flatMap(List::stream)
+                    .collect(Collectors.toList());
+        }
+
+        Collections.sort(candidates);
+        int[] ids = new int[Math.min(limit, candidates.size())];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = candidates.get(i).id;
+        }
+        return ids;
+    }
+
+    private List<Candidate> topCandidates(List<Postings> lists, String folded, int queryCount, int from, int to, int limit, double minScore) {
+        Scratch local = scratch.get();
+        local.ensureCapacity(titles.size());
+        int[] shared = local.shared;
+
+        // Count shared trigrams, only touching titles that share at least one
+        for (Postings list : lists) {
+            for (int i = list.lowerBound(from); i < list.size; i++) {
+                int id = list.ids[i];
+                if (id >= to) {
+                    break;
+                }
+                if (shared[id]++ == 0) {
+                    local.touch(id);
+                }
+            }
+        }
+
+        PriorityQueue<Candidate> best = new PriorityQueue<Candidate>(limit + 1, Collections.reverseOrder());
+        for (int i = 0; i < local.touchedSize; i++) {
+            int id = local.touched[i];
+            double score = 2.0 * shared[id] / (queryCount + trigramCounts[id]);
+            shared[id] = 0;
+            if (titles.get(id).contains(folded)) {
+                score += 1;
+            }
+            if (score >= minScore) {
+                best.add(new Candidate(id, score));
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+        }
+        local.touchedSize = 0;
+        return new ArrayList<Candidate>(best);
+    }
+
+    static String fold(String s) {
+        return s.toLowerCase(Locale.ROOT);
+    }
+
+    private static String pad(String folded) {
+        return "  " + folded + " ";
+    }
+
+    private static Long trigram(String s, int i) {
+        return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+    }
+
+    // Ascending title positions sharing one trigram
+    private static class Postings {
+
+        private int[] ids = new int[4];
+        private int size;
+
+        boolean add(int id) {
+            if (size > 0 && ids[size - 1] == id) {
+                return false; // Trigram repeats within the same title
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+            return true;
+        }
+
+        // First index holding a position >= id
+        int lowerBound(int id) {
+            if (id == 0) {
+                return 0;
+            }
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (ids[mid] < id) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    // Ordered best first, earlier titles win ties
+    private static class Candidate implements Comparable<Candidate> {
+
+        private final int id;
+        private final double score;
+
+        Candidate(int id, double score) {
+            this.id = id;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            int byScore = Double.compare(other.score, score);
+            return byScore != 0 ? byScore : Integer.compare(id, other.id);
+        }
+    }
+
+    // Per thread counters, reset after every search so only touched titles cost anything
+    private static class Scratch {
+
+        private int[] shared = new int[0];
+        private int[] touched = new int[64];
+        private int touchedSize;
+
+        void ensureCapacity(int size) {
+            if (shared.length < size) {
+                shared = new int[Math.max(size, shared.length * 2)];
+            }
+        }
+
+        void touch(int id) {
+            if (touchedSize == touched.length) {
+                touched = Arrays.copyOf(touched, touchedSize * 2);
+            }
+            touched[touchedSize++] = id;
+        }
+    }
+}
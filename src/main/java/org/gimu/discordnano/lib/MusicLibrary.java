@@ -20,10 +20,18 @@ import org.apache.commons.lang.math.NumberUtils;
 
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class MusicLibrary {
 
+    private static final double MIN_SEARCH_SCORE = 0.3;
+
     private LinkedHashMap<String, String> libraryMap = new LinkedHashMap<String, String>();
+    private ArrayList<String> titles = new ArrayList<String>(); // By index position
+    private ArrayList<String> sources = new ArrayList<String>();
+    private HashMap<String, Integer> positions = new HashMap<String, Integer>();
+    private MusicIndex index = new MusicIndex();
+    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
     public boolean add(String musicSource) {
         // Don't allow duplicate URLs
@@ -40,7 +48,7 @@ public class MusicLibrary {
         String musicTitle = audioSource.getInfo().getTitle();
 
         // Save to map
-        libraryMap.put(musicTitle, musicSource);
+        add(musicTitle, musicSource);
 
         // Save to database
         Connection conn = NanoDatabase.getConnection();
@@ -63,28 +71,73 @@ public class MusicLibrary {
         return true;
     }
 
+    public boolean add(String title, String source) {
+        lock.writeLock().lock();
+        try {
+            libraryMap.put(title, source);
+            Integer position = positions.get(title);
+            if (position != null) {
+                // Known title keeps its position
+                sources.set(position, source);
+                return false;
+            }
+            positions.put(title, index.add(title));
+            titles.add(title);
+            sources.add(source);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
     public String get(String query) {
-        if (NumberUtils.isNumber(query)) {
-            // Search based on index
-            int iterator = 0;
-            for (Map.Entry<String, String> entry : libraryMap.entrySet()) {
-                if (iterator == Integer.parseInt(query)) {
-                    return entry.getValue();
-                }
-                iterator++;
+        lock.readLock().lock();
+        try {
+            if (NumberUtils.isNumber(query)) {
+                // Search based on index
+                int position = NumberUtils.toInt(query, -1);
+                return position >= 0 && position < sources.size() ? sources.get(position) : "-1";
+            } else {
+                // Search based on string
+                int position = index.find(query);
+                return position >= 0 ? sources.get(position) : "-1";
             }
-        } else {
-            // Search based on string
-            for (String key : libraryMap.keySet()) {
-                if (key.matches(".*(?i)"+query+".*")) {
-                    return libraryMap.get(key);
-                }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Best matching tracks (title, source) for a pick list, tolerates typos
+    public List<Pair<String, String>> search(String query, int limit) {
+        lock.readLock().lock();
+        try {
+            int[] matches = index.search(query, limit, MIN_SEARCH_SCORE);
+            List<Pair<String, String>> results = new ArrayList<Pair<String, String>>(matches.length);
+            for (int position : matches) {
+                results.add(new Pair<String, String>(titles.get(position), sources.get(position)));
             }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return sources.size();
+        } finally {
+            lock.readLock().unlock();
         }
-        return "-1";
     }
 
-    public LinkedHashMap<String, String> getLibraryMap() {
-        return libraryMap;
+    // Copy of the library, use add to change it
+    public Map<String, String> getLibraryMap() {
+        lock.readLock().lock();
+        try {
+            return new LinkedHashMap<String, String>(libraryMap);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 }
@@ -16,21 +16,160 @@
 
 package org.gimu.discordnano.lib;
 
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
 import org.gimu.discordnano.DiscordNano;
+import org.json.JSONObject;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class NanoDatabase {
 
-    public static Connection getConnection() {
-        Connection conn = null;
-        try {
-            conn = DriverManager.getConnection("jdbc:mysql://localhost/discord?user=" + DiscordNano.DB_USER + "&password=" + DiscordNano.DB_PASS);
+    private static HikariDataSource dataSource;
+
+    // Pool metrics
+    private static final LongAdder acquired = new LongAdder();
+    private static final LongAdder acquireNanos = new LongAdder();
+    private static final AtomicLong maxAcquireNanos = new AtomicLong();
+    private static final LongAdder timeouts = new LongAdder();
+
+    private static final NanoMetrics.Histogram acquireTime = NanoMetrics.histogram("nano_db_acquire_seconds", "Time to get a connection from the pool");
+    private static final NanoMetrics.Histogram usageTime = NanoMetrics.histogram("nano_db_connection_usage_seconds", "Time a connection was borrowed from the pool");
+    private static final NanoMetrics.Histogram queryTime = NanoMetrics.histogram("nano_db_query_seconds", "Time of database operations, including connection acquisition", "query");
+    private static final NanoMetrics.Counter timeoutCount = NanoMetrics.counter("nano_db_acquire_timeouts_total", "Connection requests that timed out");
+
+    public static Connection getConnection() throws SQLException {
+        return getDataSource().getConnection();
+    }
+
+    public static synchronized HikariDataSource getDataSource() {
+        if (dataSource == null) {
+            open(DiscordNano.config);
+        }
+        return dataSource;
+    }
+
+    // Replaces the pool with one for the given settings, e.g. an embedded database in tests
+    public static synchronized void open(JSONObject config) {
+        close();
+        dataSource = new HikariDataSource(createConfig(config));
+        if (dataSource.getJdbcUrl().startsWith("jdbc:h2:")) {
+            createSchema(dataSource);
+        }
+    }
+
+    // Embedded databases for local clusters start out empty
+    private static void createSchema(HikariDataSource dataSource) {
+        try (Connection conn = dataSource.getConnection();
+             Statement st = conn.createStatement()) {
+            st.executeUpdate("CREATE TABLE IF NOT EXISTS NanoGuilds (id INT AUTO_INCREMENT PRIMARY KEY, guild_id VARCHAR(32) NOT NULL UNIQUE, textchannel VARCHAR(32), voicechannel VARCHAR(32))");
+            st.executeUpdate("CREATE TABLE IF NOT EXISTS MusicLibrary (id INT AUTO_INCREMENT PRIMARY KEY, title VARCHAR(255), source VARCHAR(255))");
         } catch (SQLException e) {
-            e.printStackTrace();
+            NanoLogger.error("Creating the embedded schema failed: {}", e.getMessage());
+        }
+    }
+
+    private static HikariConfig createConfig(JSONObject config) {
+        String url = config.optString("db_url", "jdbc:mysql://localhost/discord");
+
+        HikariConfig hikari = new HikariConfig();
+        hikari.setPoolName("nano-db");
+        hikari.setJdbcUrl(url);
+        hikari.setUsername(config.optString("db_user", ""));
+        hikari.setPassword(config.optString("db_pass", ""));
+        hikari.setMaximumPoolSize(config.optInt("db_pool_size", 10));
+        hikari.setMinimumIdle(config.optInt("db_pool_min_idle", 2));
+        hikari.setIdleTimeout(config.optLong("db_idle_timeout", 600000));
+        hikari.setMaxLifetime(config.optLong("db_max_lifetime", 1800000));
+        hikari.setConnectionTimeout(config.optLong("db_connection_timeout", 5000));
+        hikari.setValidationTimeout(config.optLong("db_validation_timeout", 2000));
+        hikari.setLeakDetectionThreshold(config.optLong("db_leak_detection", 60000));
+        hikari.setMetricsTrackerFactory((poolName, poolStats) -> new IMetricsTracker() {
+            @Override
+            public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+                acquired.increment();
+                acquireNanos.add(elapsedAcquiredNanos);
+                maxAcquireNanos.accumulateAndGet(elapsedAcquiredNanos, Math::max);
+                acquireTime.labels().observeNanos(elapsedAcquiredNanos);
+            }
+
+            @Override
+            public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+                usageTime.labels().observeNanos(TimeUnit.MILLISECONDS.toNanos(elapsedBorrowedMillis));
+            }
+
+            @Override
+            public void recordConnectionTimeout() {
+                timeouts.increment();
+                timeoutCount.inc();
+            }
+        });
+
+        if (url.startsWith("jdbc:mysql:")) {
+            // Server side prepared statements, cached per connection
+            hikari.addDataSourceProperty("useServerPrepStmts", "true");
+            hikari.addDataSourceProperty("cachePrepStmts", "true");
+            hikari.addDataSourceProperty("prepStmtCacheSize", config.optInt("db_statement_cache_size", 250));
+            hikari.addDataSourceProperty("prepStmtCacheSqlLimit", 2048);
+            hikari.addDataSourceProperty("useLocalSessionState", "true");
+            hikari.addDataSourceProperty("rewriteBatchedStatements", "true");
         }
-        return conn;
+        return hikari;
+    }
+
+    // Records a database operation that started at the given System.nanoTime
+    public static void recordQuery(String query, long start) {
+        queryTime.observeSince(start, query);
+    }
+
+    public static synchronized void close() {
+        if (dataSource != null) {
+            dataSource.close();
+            dataSource = null;
+        }
+    }
+
+    public static int getActiveConnections() {
+        HikariPoolMXBean pool = getPool();
+        return pool != null ? pool.getActiveConnections() : 0;
+    }
+
+    public static int getIdleConnections() {
+        HikariPoolMXBean pool = getPool();
+        return pool != null ? pool.getIdleConnections() : 0;
+    }
+
+    public static int getPendingThreads() {
+        HikariPoolMXBean pool = getPool();
+        return pool != null ? pool.getThreadsAwaitingConnection() : 0;
+    }
+
+    public static long getAcquiredCount() {
+        return acquired.sum();
+    }
+
+    public static long getTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    public static double getAverageWaitMillis() {
+        long count = acquired.sum();
+        return count == 0 ? 0 : acquireNanos.sum() / (double) count / 1_000_000;
+    }
+
+    // Longest connection acquisition since startup, reading doesn't reset it
+    public static double getMaxWaitMillis() {
+        return maxAcquireNanos.get() / 1_000_000.0;
+    }
+
+    private static synchronized HikariPoolMXBean getPool() {
+        return dataSource != null ? dataSource.getHikariPoolMXBean() : null;
     }
 }
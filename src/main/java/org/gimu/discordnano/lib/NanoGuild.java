@@ -18,32 +18,40 @@ package org.gimu.discordnano.lib;
 
 public class NanoGuild {
 
-    private String voicechannel; // Main voice channel to join/leave
-    private String textchannel; // Main channel to listen for
+    // Channel ids, 0 for none
+    private volatile long voicechannel; // Main voice channel to join/leave
+    private volatile long textchannel; // Main channel to listen for
 
     public NanoGuild() {
-        this.voicechannel = "";
-        this.textchannel = "";
     }
 
-    public NanoGuild(String textchannel, String voicechannel) {
+    public NanoGuild(long textchannel, long voicechannel) {
         this.textchannel = textchannel;
         this.voicechannel = voicechannel;
     }
 
-    public String getVoicechannel() {
+    public long getVoicechannel() {
         return voicechannel;
     }
 
-    public void setVoicechannel(String voicechannel) {
+    public void setVoicechannel(long voicechannel) {
         this.voicechannel = voicechannel;
     }
 
-    public String getTextchannel() {
+    public long getTextchannel() {
         return textchannel;
     }
 
-    public void setTextchannel(String textchannel) {
+    public void setTextchannel(long textchannel) {
         this.textchannel = textchannel;
     }
+
+    // The database keeps ids as strings, empty for none
+    static long parseId(String id) {
+        return id == null || id.isEmpty() ? 0 : Long.parseLong(id);
+    }
+
+    static String formatId(long id) {
+        return id == 0 ? "" : Long.toString(id);
+    }
 }
@@ -19,113 +19,238 @@ package org.gimu.discordnano.lib;
 import net.dv8tion.jda.core.entities.Guild;
 
 import java.sql.*;
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class NanoGuildLibrary {
 
-    private LinkedHashMap<String, NanoGuild> libraryMap = new LinkedHashMap<String, NanoGuild>();
+    private static final int LOOKUP_BATCH = 500;
+
+    private NanoGuildMap guildMap = new NanoGuildMap();
+    private NanoGuildWriter writer;
+    private boolean partial;
+
+    public NanoGuildLibrary() {
+        this(1000, 100, false);
+    }
+
+    // Partial libraries hold only some guilds of the table (one shard), they look up their rows by id
+    public NanoGuildLibrary(long flushInterval, int flushBatch, boolean partial) {
+        this.writer = new NanoGuildWriter(flushInterval, flushBatch);
+        this.partial = partial;
+    }
 
     public void add(Guild guild) {
         NanoGuild nanoGuild = new NanoGuild();
-        String guildID = guild.getId();
+        long guildID = Long.parseLong(guild.getId());
 
         // Add if not already present in map
-        if (libraryMap.get(guildID) == null) {
-            Connection conn = NanoDatabase.getConnection();
-            try {
-                Statement st = conn.createStatement();
-                ResultSet rs = st.executeQuery("SELECT id, textchannel, voicechannel FROM NanoGuilds WHERE guild_id = '" + guildID + "'");
-                if (!rs.first()) {
-                    // Add to database
-                    // set first textchannel to be main one
-                    PreparedStatement ps = conn.prepareStatement("INSERT INTO NanoGuilds (guild_id, textchannel, voicechannel) VALUES(?, ?, ?)");
-                    ps.setString(1, guildID);
-                    if (nanoGuild.getTextchannel().isEmpty()) {
-                        // Bound to first text channel
-                        nanoGuild.setTextchannel(guild.getTextChannels().get(0).getId());
-                    }
-                    ps.setString(2, nanoGuild.getTextchannel());
-                    ps.setString(3, nanoGuild.getVoicechannel());
-                    ps.executeUpdate();
-                    ps.close();
-
-                }
+        if (guildMap.get(guildID) == null) {
+            // Rejoined before the removal was written, let it hit the database first
+            if (writer.isDeletePending(guildID)) {
+                writer.flush();
+            }
 
-                // Already in database
-                if (rs.first()) {
-                    // Fetch data prior to adding to the map
-                    nanoGuild.setTextchannel(rs.getString("textchannel"));
-                    nanoGuild.setVoicechannel(rs.getString("voicechannel"));
+            long start = System.nanoTime();
+            try (Connection conn = NanoDatabase.getConnection();
+                 PreparedStatement select = conn.prepareStatement("SELECT id, textchannel, voicechannel FROM NanoGuilds WHERE guild_id = ?")) {
+                select.setString(1, guild.getId());
+                try (ResultSet rs = select.executeQuery()) {
+                    if (rs.next()) {
+                        // Already in database, fetch data prior to adding to the map
+                        nanoGuild.setTextchannel(NanoGuild.parseId(rs.getString("textchannel")));
+                        nanoGuild.setVoicechannel(NanoGuild.parseId(rs.getString("voicechannel")));
+                    } else {
+                        // Add to database, bound to first text channel
+                        nanoGuild.setTextchannel(Long.parseLong(guild.getTextChannels().get(0).getId()));
+                        try (PreparedStatement ps = conn.prepareStatement("INSERT INTO NanoGuilds (guild_id, textchannel, voicechannel) VALUES(?, ?, ?)")) {
+                            ps.setString(1, guild.getId());
+                            ps.setString(2, NanoGuild.formatId(nanoGuild.getTextchannel()));
+                            ps.setString(3, NanoGuild.formatId(nanoGuild.getVoicechannel()));
+                            ps.executeUpdate();
+                        }
+                    }
                 }
 
                 // Finally add to the map
-                libraryMap.put(guildID, nanoGuild);
-                conn.close();
+                guildMap.put(guildID, nanoGuild);
             } catch (SQLException e) {
                 NanoLogger.error(e.getMessage());
             }
+            NanoDatabase.recordQuery("guild_load", start);
         }
     }
 
-    public void remove(String guildID) {
-        if (libraryMap.get(guildID) != null) {
-            Connection conn = NanoDatabase.getConnection();
-            try {
-                // Delete from database
-                conn.createStatement().executeQuery("DELETE FROM NanoGuilds WHERE guild_id = '" + guildID + "'");
+    public void addAll(Collection<Guild> guilds) {
+        long start = System.nanoTime();
 
-                // Remove from map
-                libraryMap.remove(guildID);
-                conn.close();
-            } catch (SQLException e) {
-                NanoLogger.error(e.getMessage());
+        // Guilds not yet in the map
+        Map<String, Guild> missing = new HashMap<String, Guild>(guilds.size() * 4 / 3 + 1);
+        for (Guild guild : guilds) {
+            if (guildMap.get(Long.parseLong(guild.getId())) == null) {
+                missing.put(guild.getId(), guild);
             }
         }
-    }
+        if (missing.isEmpty()) {
+            return;
+        }
 
-    public NanoGuild get(String guildID) {
-        return libraryMap.get(guildID);
-    }
+        writer.flush(); // Pending removals have to be written before reading
 
-    public void setTextchannel(String guildID, String textchannel) {
-        // Update in map and database
-        if (libraryMap.get(guildID) != null) {
-            libraryMap.get(guildID).setTextchannel(textchannel);
+        int loaded = 0;
+        int inserted = 0;
+        long queried = start;
+        try (Connection conn = NanoDatabase.getConnection()) {
+            loaded = partial ? loadById(conn, missing) : loadAll(conn, missing);
+            queried = System.nanoTime();
 
-            Connection conn = NanoDatabase.getConnection();
-            try {
-                PreparedStatement ps = conn.prepareStatement("UPDATE NanoGuilds SET textchannel = ? WHERE guild_id = ?");
-                ps.setString(1, textchannel);
-                ps.setString(2, guildID);
-                ps.executeUpdate();
-                ps.close();
-                conn.close();
-            } catch (SQLException e) {
-                NanoLogger.error(e.getMessage());
+            // Insert the remaining guilds with one batch, bound to their first text channel
+            if (!missing.isEmpty()) {
+                List<Guild> batch = new ArrayList<Guild>(missing.values());
+                List<NanoGuild> created = new ArrayList<NanoGuild>(batch.size());
+                int[] counts;
+                try (PreparedStatement ps = conn.prepareStatement("INSERT INTO NanoGuilds (guild_id, textchannel, voicechannel) VALUES(?, ?, ?) ON DUPLICATE KEY UPDATE guild_id = guild_id")) {
+                    for (Guild guild : batch) {
+                        NanoGuild nanoGuild = new NanoGuild();
+                        if (!guild.getTextChannels().isEmpty()) {
+                            nanoGuild.setTextchannel(Long.parseLong(guild.getTextChannels().get(0).getId()));
+                        }
+                        ps.setString(1, guild.getId());
+                        ps.setString(2, NanoGuild.formatId(nanoGuild.getTextchannel()));
+                        ps.setString(3, NanoGuild.formatId(nanoGuild.getVoicechannel()));
+                        ps.addBatch();
+                        created.add(nanoGuild);
+                    }
+                    counts = ps.executeBatch();
+                }
+
+                // Rows inserted by someone else since the load keep their stored channels, those are read back.
+                // Drivers that don't report counts per row get every row read back.
+                Map<String, Guild> existing = new HashMap<String, Guild>();
+                for (int i = 0; i < batch.size(); i++) {
+                    Guild guild = batch.get(i);
+                    if (i < counts.length && counts[i] == 1) {
+                        guildMap.putIfAbsent(Long.parseLong(guild.getId()), created.get(i));
+                        inserted++;
+                    } else {
+                        existing.put(guild.getId(), guild);
+                    }
+                }
+                if (!existing.isEmpty()) {
+                    loaded += loadById(conn, existing);
+                }
             }
+        } catch (SQLException e) {
+            NanoLogger.error(e.getMessage());
         }
+
+        long end = System.nanoTime();
+        NanoDatabase.recordQuery("guild_bootstrap", start);
+        NanoLogger.info("Bootstrapped {} of {} guilds ({} loaded, {} inserted) in {} ms (query {} ms, insert {} ms)", loaded + inserted, guilds.size(),
+                loaded, inserted, (end - start) / 1_000_000, (queried - start) / 1_000_000, (end - queried) / 1_000_000);
     }
 
-    public void setVoicechannel(String guildID, String voicechannel) {
-        // Update in map and database
-        if (libraryMap.get(guildID) != null) {
-            libraryMap.get(guildID).setVoicechannel(voicechannel);
+    // Single streamed pass over every known guild
+    private int loadAll(Connection conn, Map<String, Guild> missing) throws SQLException {
+        int loaded = 0;
+        try (Statement st = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            st.setFetchSize(isMySQL(conn) ? Integer.MIN_VALUE : 1000);
+            try (ResultSet rs = st.executeQuery("SELECT guild_id, textchannel, voicechannel FROM NanoGuilds")) {
+                while (rs.next()) {
+                    if (load(rs, missing)) loaded++;
+                }
+            }
+        }
+        return loaded;
+    }
 
-            Connection conn = NanoDatabase.getConnection();
-            try {
-                PreparedStatement ps = conn.prepareStatement("UPDATE NanoGuilds SET voicechannel = ? WHERE guild_id = ?");
-                ps.setString(1, voicechannel);
-                ps.setString(2, guildID);
-                ps.executeUpdate();
-                ps.close();
-                conn.close();
-            } catch (SQLException e) {
-                NanoLogger.error(e.getMessage());
+    // Only the rows of the given guilds, in batches of id lists
+    private int loadById(Connection conn, Map<String, Guild> missing) throws SQLException {
+        int loaded = 0;
+        String[] ids = missing.keySet().toArray(new String[0]);
+        for (int from = 0; from < ids.length; from += LOOKUP_BATCH) {
+            int count = Math.min(LOOKUP_BATCH, ids.length - from);
+            StringBuilder sql = new StringBuilder("SELECT guild_id, textchannel, voicechannel FROM NanoGuilds WHERE guild_id IN (?");
+            for (int i = 1; i < count; i++) {
+                sql.append(", ?");
             }
+            try (PreparedStatement ps = conn.prepareStatement(sql.append(')').toString())) {
+                for (int i = 0; i < count; i++) {
+                    ps.setString(i + 1, ids[from + i]);
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        if (load(rs, missing)) loaded++;
+                    }
+                }
+            }
+        }
+        return loaded;
+    }
+
+    private boolean load(ResultSet rs, Map<String, Guild> missing) throws SQLException {
+        String guildID = rs.getString(1);
+        if (missing.remove(guildID) == null) {
+            return false;
+        }
+        // A guild added in the meantime (joined) already has the current row
+        guildMap.putIfAbsent(Long.parseLong(guildID), new NanoGuild(NanoGuild.parseId(rs.getString(2)), NanoGuild.parseId(rs.getString(3))));
+        return true;
+    }
+
+    public void remove(long guildID) {
+        // Remove from map, the database follows with the next flush
+        if (guildMap.remove(guildID) != null) {
+            writer.delete(guildID);
+        }
+    }
+
+    // Lock free, called for every message
+    public NanoGuild get(long guildID) {
+        return guildMap.get(guildID);
+    }
+
+    public void setTextchannel(long guildID, long textchannel) {
+        // Update in map, the database follows with the next flush
+        NanoGuild nanoGuild = guildMap.get(guildID);
+        if (nanoGuild != null) {
+            nanoGuild.setTextchannel(textchannel);
+            writer.update(guildID, nanoGuild.getTextchannel(), nanoGuild.getVoicechannel());
         }
     }
 
-    public LinkedHashMap<String, NanoGuild> getLibraryMap() {
-        return libraryMap;
+    public void setVoicechannel(long guildID, long voicechannel) {
+        // Update in map, the database follows with the next flush
+        NanoGuild nanoGuild = guildMap.get(guildID);
+        if (nanoGuild != null) {
+            nanoGuild.setVoicechannel(voicechannel);
+            writer.update(guildID, nanoGuild.getTextchannel(), nanoGuild.getVoicechannel());
+        }
+    }
+
+    public NanoGuildMap getGuildMap() {
+        return guildMap;
+    }
+
+    public NanoGuildWriter getWriter() {
+        return writer;
+    }
+
+    private static boolean isMySQL(Connection conn) throws SQLException {
+        return "MySQL".equalsIgnoreCase(conn.getMetaData().getDatabaseProductName());
+    }
+
+    // Writes everything still queued and forgets all guilds, e.g. when the shard moved to another process
+    public void unload() {
+        writer.flush();
+        guildMap.clear();
+    }
+
+    // Writes everything still queued, called on shutdown
+    public void shutdown() {
+        writer.shutdown();
     }
 }
@@ -0,0 +1,162 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.lib;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Open addressing map from guild ids to guilds with linear probing. Reads take
+ * no locks, writes are serialized. Removed guilds keep their key with a null
+ * value until the next resize, so a probe never stops early.
+ */
+public class NanoGuildMap {
+
+    private static final long EMPTY = 0; // Snowflakes are never 0
+    private static final int MAX_LOAD_PERCENT = 60; // Including removed slots
+
+    private volatile Table table;
+    private int size;
+    private int used;
+
+    public NanoGuildMap() {
+        this(16);
+    }
+
+    public NanoGuildMap(int expectedSize) {
+        table = new Table(capacityFor(expectedSize));
+    }
+
+    public NanoGuild get(long guildID) {
+        Table table = this.table;
+        for (int i = table.index(guildID); ; i = (i + 1) & table.mask) {
+            long key = table.keys.get(i);
+            if (key == guildID) return table.values.get(i);
+            if (key == EMPTY) return null;
+        }
+    }
+
+    public synchronized NanoGuild put(long guildID, NanoGuild guild) {
+        if (guildID == EMPTY || guild == null) {
+            throw new IllegalArgumentException("Guild id and guild are required");
+        }
+        Table table = this.table;
+        int i = table.find(guildID);
+        if (table.keys.get(i) == EMPTY) {
+            if ((used + 1) * 100L > (long) table.capacity() * MAX_LOAD_PERCENT) {
+                table = resize(size + 1);
+                i = table.find(guildID);
+            }
+            // Value before key, a reader that sees the key also sees its guild
+            table.values.set(i, guild);
+            table.keys.set(i, guildID);
+            used++;
+            size++;
+            return null;
+        }
+        NanoGuild previous = table.values.getAndSet(i, guild);
+        if (previous == null) size++;
+        return previous;
+    }
+
+    // Keeps a guild that is already present, returns it then
+    public synchronized NanoGuild putIfAbsent(long guildID, NanoGuild guild) {
+        NanoGuild current = get(guildID);
+        return current != null ? current : put(guildID, guild);
+    }
+
+    public synchronized NanoGuild remove(long guildID) {
+        Table table = this.table;
+        int i = table.find(guildID);
+        if (table.keys.get(i) == EMPTY) {
+            return null;
+        }
+        NanoGuild previous = table.values.getAndSet(i, null);
+        if (previous != null) size--;
+        return previous;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // Slots of the current table, for tests
+    int getCapacity() {
+        return table.capacity();
+    }
+
+    public synchronized void clear() {
+        table = new Table(capacityFor(0));
+        size = 0;
+        used = 0;
+    }
+
+    // Rehashes into a fresh table, which also drops the slots of removed guilds.
+    // Leaves room for half as many guilds again, so churn doesn't rehash all the time.
+    private Table resize(int expectedSize) {
+        Table old = this.table;
+        Table table = new Table(capacityFor(expectedSize + expectedSize / 2));
+        for (int i = 0; i < old.capacity(); i++) {
+            NanoGuild guild = old.values.get(i);
+            if (guild != null) {
+                int slot = table.find(old.keys.get(i));
+                table.values.set(slot, guild);
+                table.keys.set(slot, old.keys.get(i));
+            }
+        }
+        used = size;
+        this.table = table;
+        return table;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        long minimum = Math.max(16, (long) expectedSize * 100 / MAX_LOAD_PERCENT + 1);
+        if (minimum > 1 << 30) {
+            throw new IllegalArgumentException("Too many guilds: " + expectedSize);
+        }
+        return Integer.highestOneBit((int) minimum - 1) << 1;
+    }
+
+    private static final class Table {
+
+        final AtomicLongArray keys;
+        final AtomicReferenceArray<NanoGuild> values;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            values = new AtomicReferenceArray<NanoGuild>(capacity);
+            mask = capacity - 1;
+        }
+
+        int capacity() {
+            return mask + 1;
+        }
+
+        // Snowflakes share their low bits (worker, sequence), spread the timestamp over them
+        int index(long key) {
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        }
+
+        // Slot holding the key, or the empty slot it would be inserted into
+        int find(long key) {
+            for (int i = index(key); ; i = (i + 1) & mask) {
+                long current = keys.get(i);
+                if (current == key || current == EMPTY) return i;
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.lib;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write-behind persistence for guild settings. Only the latest state of each
+ * guild is kept until the next flush, which writes all pending guilds as JDBC
+ * batches in a single transaction.
+ */
+public class NanoGuildWriter {
+
+    private final ConcurrentHashMap<Long, PendingWrite> pending = new ConcurrentHashMap<Long, PendingWrite>();
+    private final ConcurrentHashMap<Long, PendingWrite> inFlight = new ConcurrentHashMap<Long, PendingWrite>(); // Written by the flush holding flushLock
+    private final Object flushLock = new Object();
+    private final AtomicBoolean flushQueued = new AtomicBoolean(); // A batch-triggered flush waits for the flusher
+    private final long flushInterval;
+    private final int flushBatch;
+    private ScheduledExecutorService flusher;
+
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder written = new LongAdder();
+
+    public NanoGuildWriter(long flushInterval, int flushBatch) {
+        this.flushInterval = flushInterval;
+        this.flushBatch = flushBatch;
+    }
+
+    public void update(long guildID, long textchannel, long voicechannel) {
+        enqueue(guildID, new PendingWrite(textchannel, voicechannel, false));
+    }
+
+    public void delete(long guildID) {
+        enqueue(guildID, new PendingWrite(0, 0, true));
+    }
+
+    // Also true while the delete is being written, until its transaction ended
+    public boolean isDeletePending(long guildID) {
+        PendingWrite write = pending.get(guildID);
+        if (write == null) {
+            write = inFlight.get(guildID);
+        }
+        return write != null && write.delete;
+    }
+
+    private void enqueue(long guildID, PendingWrite write) {
+        queued.increment();
+        if (pending.put(guildID, write) != null) {
+            coalesced.increment();
+        }
+
+        ScheduledExecutorService executor = getFlusher();
+        // At most one queued, otherwise every write during a database outage adds another failing flush
+        if (pending.size() >= flushBatch && flushQueued.compareAndSet(false, true)) {
+            try {
+                executor.execute(() -> {
+                    flushQueued.set(false);
+                    flush();
+                });
+            } catch (RejectedExecutionException e) {
+                flushQueued.set(false);
+                flush(); // Shutting down
+            }
+        }
+    }
+
+    public void flush() {
+        synchronized (flushLock) {
+            if (pending.isEmpty()) {
+                return;
+            }
+
+            // Take ownership of everything queued so far, newer writes wait for the next flush.
+            // Writes move to inFlight before they leave pending, so they never disappear from view.
+            List<Map.Entry<Long, PendingWrite>> batch = new ArrayList<Map.Entry<Long, PendingWrite>>();
+            for (Map.Entry<Long, PendingWrite> entry : pending.entrySet()) {
+                Long guildID = entry.getKey();
+                PendingWrite write = entry.getValue();
+                inFlight.put(guildID, write);
+                if (pending.remove(guildID, write)) {
+                    batch.add(new Pair<Long, PendingWrite>(guildID, write));
+                } else {
+                    inFlight.remove(guildID, write); // Replaced in the meantime
+                }
+            }
+
+            long start = System.nanoTime();
+            try (Connection conn = NanoDatabase.getConnection()) {
+                conn.setAutoCommit(false);
+                try (PreparedStatement update = conn.prepareStatement("UPDATE NanoGuilds SET textchannel = ?, voicechannel = ? WHERE guild_id = ?");
+                     PreparedStatement delete = conn.prepareStatement("DELETE FROM NanoGuilds WHERE guild_id = ?")) {
+                    int updates = 0;
+                    int deletes = 0;
+                    for (Map.Entry<Long, PendingWrite> entry : batch) {
+                        PendingWrite write = entry.getValue();
+                        if (write.delete) {
+                            delete.setString(1, entry.getKey().toString());
+                            delete.addBatch();
+                            deletes++;
+                        } else {
+                            update.setString(1, NanoGuild.formatId(write.textchannel));
+                            update.setString(2, NanoGuild.formatId(write.voicechannel));
+                            update.setString(3, entry.getKey().toString());
+                            update.addBatch();
+                            updates++;
+                        }
+                    }
+                    if (updates > 0) update.executeBatch();
+                    if (deletes > 0) delete.executeBatch();
+                    conn.commit();
+                    written.add(batch.size());
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                NanoLogger.error("Flushing {} guild writes failed: {}", batch.size(), e.getMessage());
+
+                // Retry with the next flush unless the guild changed again in the meantime
+                for (Map.Entry<Long, PendingWrite> entry : batch) {
+                    pending.putIfAbsent(entry.getKey(), entry.getValue());
+                }
+            } finally {
+                inFlight.clear();
+            }
+            NanoDatabase.recordQuery("guild_flush", start);
+        }
+    }
+
+    public void shutdown() {
+        synchronized (this) {
+            if (flusher != null) {
+                flusher.shutdown();
+            }
+        }
+        flush();
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public long getQueuedCount() {
+        return queued.sum();
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    // Started on first write, so unused libraries don't keep a thread around
+    synchronized ScheduledExecutorService getFlusher() {
+        if (flusher == null) {
+            flusher = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "guild-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(() -> {
+                try {
+                    flush();
+                } catch (RuntimeException e) {
+                    NanoLogger.error("Flushing guild writes failed", e);
+                }
+            }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        }
+        return flusher;
+    }
+
+    private static class PendingWrite {
+
+        private final long textchannel;
+        private final long voicechannel;
+        private final boolean delete;
+
+        PendingWrite(long textchannel, long voicechannel, boolean delete) {
+            this.textchannel = textchannel;
+            this.voicechannel = voicechannel;
+            this.delete = delete;
+        }
+    }
+}
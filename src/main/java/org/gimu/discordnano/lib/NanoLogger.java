@@ -15,8 +15,34 @@
  */
 package org.gimu.discordnano.lib;
 
-import org.gimu.discordnano.DiscordNano;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Asynchronous logger. Callers only check the level and publish the unformatted
+ * message into a ring buffer, a background thread formats and writes the lines
+ * in batches to the console and a rolling log file. Messages take `{}`
+ * placeholders, a trailing throwable is appended with its stack trace.
+ * Arguments are rendered later on the writer thread, so callers must not pass
+ * state they keep changing, e.g. a collection another thread modifies.
+ *
+ * When the writer falls behind the oldest messages are overwritten and counted
+ * as dropped.
+ */
 public class NanoLogger {
 
     public static final String ANSI_RESET = "\u001B[0m";
@@ -24,21 +50,362 @@ public class NanoLogger {
     public static final String ANSI_GREEN = "\u001B[32m";
     public static final String ANSI_YELLOW = "\u001B[33m";
 
-    public static void debug(String message) {
-        if (DiscordNano.DEBUG) {
-            System.out.println(ANSI_GREEN + "[DEBUG] " + message + ANSI_RESET);
+    private static final int BUFFER_SIZE = 8192; // Power of two
+    private static final int BATCH_SIZE = 256;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long STORE_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private static final AtomicReferenceArray<Entry> ring = new AtomicReferenceArray<Entry>(BUFFER_SIZE);
+    private static final AtomicLong published = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static long consumed; // Writer thread only
+    private static final SimpleDateFormat timestamps = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS"); // Writer thread only
+
+    private static volatile Level level = Level.INFO;
+    private static volatile FileTarget target;
+    private static volatile boolean running = true;
+    private static volatile boolean idle;
+    private static final Thread writer = new Thread(NanoLogger::run, "nano-logger");
+
+    static {
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public enum Level {
+        DEBUG(ANSI_GREEN), INFO(null), WARNING(ANSI_YELLOW), ERROR(ANSI_RED);
+
+        private final String color;
+
+        Level(String color) {
+            this.color = color;
         }
     }
 
+    // Log file rolled to file.1 ... file.maxFiles once it exceeds maxFileSize, no file if path is empty
+    public static void configure(Level level, String path, long maxFileSize, int maxFiles) {
+        NanoLogger.level = level;
+        target = path == null || path.isEmpty() ? null : new FileTarget(Paths.get(path), maxFileSize, maxFiles);
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(NanoLogger.level) >= 0;
+    }
+
+    public static long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    public static void debug(String format, Object arg) {
+        if (isEnabled(Level.DEBUG)) log(Level.DEBUG, format, new Object[]{arg});
+    }
+
+    public static void debug(String format, Object arg1, Object arg2) {
+        if (isEnabled(Level.DEBUG)) log(Level.DEBUG, format, new Object[]{arg1, arg2});
+    }
+
+    public static void debug(String format, Object... args) {
+        log(Level.DEBUG, format, args);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    public static void info(String format, Object arg) {
+        if (isEnabled(Level.INFO)) log(Level.INFO, format, new Object[]{arg});
+    }
+
+    public static void info(String format, Object arg1, Object arg2) {
+        if (isEnabled(Level.INFO)) log(Level.INFO, format, new Object[]{arg1, arg2});
+    }
+
+    public static void info(String format, Object... args) {
+        log(Level.INFO, format, args);
+    }
+
     public static void warning(String message) {
-        if (DiscordNano.DEBUG) {
-            System.out.println(ANSI_YELLOW + "[WARNING] " + message + ANSI_RESET);
-        }
+        log(Level.WARNING, message, null);
+    }
+
+    public static void warning(String format, Object arg) {
+        if (isEnabled(Level.WARNING)) log(Level.WARNING, format, new Object[]{arg});
+    }
+
+    public static void warning(String format, Object arg1, Object arg2) {
+        if (isEnabled(Level.WARNING)) log(Level.WARNING, format, new Object[]{arg1, arg2});
+    }
+
+    public static void warning(String format, Object... args) {
+        log(Level.WARNING, format, args);
     }
 
     public static void error(String message) {
-        if (DiscordNano.DEBUG) {
-            System.out.println(ANSI_RED + "[ERROR] " + message + ANSI_RESET);
+        log(Level.ERROR, message, null);
+    }
+
+    public static void error(String format, Object arg) {
+        if (isEnabled(Level.ERROR)) log(Level.ERROR, format, new Object[]{arg});
+    }
+
+    public static void error(String format, Object arg1, Object arg2) {
+        if (isEnabled(Level.ERROR)) log(Level.ERROR, format, new Object[]{arg1, arg2});
+    }
+
+    public static void error(String format, Object... args) {
+        log(Level.ERROR, format, args);
+    }
+
+    private static void log(Level level, String format, Object[] args) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        long seq = published.getAndIncrement();
+        Entry entry = new Entry(seq, level, System.currentTimeMillis(), Thread.currentThread().getName(), format, args);
+        if (!running) {
+            // Writer is gone, keep late shutdown messages
+            synchronized (NanoLogger.class) {
+                System.out.println(entry.console(entry.message()));
+            }
+            return;
+        }
+        ring.set(index(seq), entry);
+        if (idle) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    // Writes everything still buffered, called on shutdown
+    public static void shutdown() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void run() {
+        StringBuilder console = new StringBuilder(BATCH_SIZE * 64);
+        StringBuilder file = new StringBuilder(BATCH_SIZE * 96);
+        LogFile out = null;
+        while (true) {
+            boolean stopping = !running;
+            int written = drain(console, file);
+            if (written > 0) {
+                synchronized (NanoLogger.class) {
+                    System.out.print(console);
+                    System.out.flush();
+                }
+                out = write(out, file);
+                console.setLength(0);
+                file.setLength(0);
+            } else if (stopping) {
+                break;
+            } else if (published.get() != consumed) {
+                // A producer claimed the next slot but hasn't stored its entry yet
+                LockSupport.parkNanos(STORE_WAIT_NANOS);
+            } else {
+                idle = true;
+                if (published.get() == consumed) {
+                    LockSupport.parkNanos(IDLE_NANOS);
+                }
+                idle = false;
+            }
+        }
+        if (out != null) {
+            out.close();
+        }
+    }
+
+    private static int drain(StringBuilder console, StringBuilder file) {
+        long head = published.get();
+        long lost = 0;
+        if (head - consumed > BUFFER_SIZE) {
+            // Overwritten before they were read
+            lost = head - BUFFER_SIZE - consumed;
+            consumed = head - BUFFER_SIZE;
+        }
+        int written = 0;
+        while (consumed < head && written < BATCH_SIZE) {
+            int index = index(consumed);
+            Entry entry = ring.get(index);
+            if (entry == null) {
+                break; // Claimed but not yet stored
+            }
+            if (entry.seq == consumed) {
+                ring.compareAndSet(index, entry, null);
+                append(entry, console, file);
+                written++;
+            } else {
+                // Overwritten by a newer entry, or by an older one whose producer stalled until the ring wrapped
+                if (entry.seq < consumed) {
+                    ring.compareAndSet(index, entry, null);
+                }
+                lost++;
+            }
+            consumed++;
+        }
+        if (lost > 0) {
+            dropped.addAndGet(lost);
+            append(new Entry(-1, Level.WARNING, System.currentTimeMillis(), "nano-logger", "Dropped {} log messages", new Object[]{lost}), console, file);
+            written++;
+        }
+        return written;
+    }
+
+    private static void append(Entry entry, StringBuilder console, StringBuilder file) {
+        String message;
+        try {
+            message = entry.message();
+        } catch (RuntimeException e) {
+            // A throwing toString() must not kill the writer
+            message = "[format failed: " + e + "] " + entry.format;
+        }
+        console.append(entry.console(message)).append(System.lineSeparator());
+        file.append(timestamps.format(new Date(entry.time))).append(" [").append(entry.level).append("] [").append(entry.thread).append("] ")
+                .append(message).append(System.lineSeparator());
+    }
+
+    private static LogFile write(LogFile out, StringBuilder lines) {
+        FileTarget target = NanoLogger.target;
+        if (out != null && out.target != target) {
+            out.close();
+            out = null;
+        }
+        if (target == null) {
+            return null;
+        }
+        try {
+            if (out == null) {
+                out = new LogFile(target);
+            }
+            byte[] bytes = lines.toString().getBytes(StandardCharsets.UTF_8);
+            out.stream.write(bytes);
+            out.stream.flush();
+            out.size += bytes.length;
+            if (out.size >= target.maxFileSize) {
+                out.close();
+                roll(target);
+                out = null;
+            }
+        } catch (IOException e) {
+            System.err.println("[ERROR] Writing " + target.path + " failed: " + e);
+            if (out != null) {
+                out.close();
+            }
+            out = null;
+        }
+        return out;
+    }
+
+    private static void roll(FileTarget target) throws IOException {
+        Path path = target.path;
+        if (target.maxFiles <= 0) {
+            Files.deleteIfExists(path);
+            return;
+        }
+        for (int i = target.maxFiles - 1; i >= 1; i--) {
+            Path from = Paths.get(path + "." + i);
+            if (Files.exists(from)) {
+                Files.move(from, Paths.get(path + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(path, Paths.get(path + ".1"), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static int index(long seq) {
+        return (int) seq & (BUFFER_SIZE - 1);
+    }
+
+    static String format(String format, Object[] args) {
+        if (args == null || args.length == 0) {
+            return format;
+        }
+        StringBuilder builder = new StringBuilder(format.length() + 16 * args.length);
+        int arg = 0;
+        int start = 0;
+        int placeholder;
+        while (arg < args.length && (placeholder = format.indexOf("{}", start)) >= 0) {
+            builder.append(format, start, placeholder).append(args[arg++]);
+            start = placeholder + 2;
+        }
+        builder.append(format, start, format.length());
+        // Arguments without a placeholder, only a throwable is printed
+        if (arg < args.length && args[args.length - 1] instanceof Throwable) {
+            StringWriter trace = new StringWriter();
+            ((Throwable) args[args.length - 1]).printStackTrace(new PrintWriter(trace));
+            builder.append(System.lineSeparator()).append(trace.toString().trim());
+        }
+        return builder.toString();
+    }
+
+    private static final class Entry {
+
+        final long seq;
+        final Level level;
+        final long time;
+        final String thread;
+        final String format;
+        final Object[] args;
+
+        Entry(long seq, Level level, long time, String thread, String format, Object[] args) {
+            this.seq = seq;
+            this.level = level;
+            this.time = time;
+            this.thread = thread;
+            this.format = format;
+            this.args = args;
+        }
+
+        String message() {
+            return format(format, args);
+        }
+
+        String console(String message) {
+            return level.color == null ? "[" + level + "] " + message : level.color + "[" + level + "] " + message + ANSI_RESET;
+        }
+    }
+
+    private static final class FileTarget {
+
+        final Path path;
+        final long maxFileSize;
+        final int maxFiles;
+
+        FileTarget(Path path, long maxFileSize, int maxFiles) {
+            this.path = path;
+            this.maxFileSize = maxFileSize;
+            this.maxFiles = maxFiles;
+        }
+    }
+
+    private static final class LogFile {
+
+        final FileTarget target;
+        final OutputStream stream;
+        long size;
+
+        LogFile(FileTarget target) throws IOException {
+            this.target = target;
+            Path parent = target.path.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            this.stream = Files.newOutputStream(target.path, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            this.size = Files.size(target.path);
+        }
+
+        void close() {
+            try {
+                stream.close();
+            } catch (IOException ignored) {
+            }
         }
     }
 }
@@ -0,0 +1,291 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.lib;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, gauges and latency histograms, served in the Prometheus text format.
+ * Recording only touches LongAdders, labelled children are created once and looked
+ * up by their label values afterwards. Percentiles per label come from
+ * histogram_quantile over the exported buckets.
+ */
+public class NanoMetrics {
+
+    // Upper bounds in seconds, from sub-millisecond lookups to slow external calls
+    private static final double[] LATENCY_BUCKETS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+
+    private static final Map<String, Metric> metrics = new ConcurrentSkipListMap<String, Metric>();
+    private static HttpServer server;
+
+    public static Counter counter(String name, String help, String... labelNames) {
+        return register(new Counter(name, help, labelNames));
+    }
+
+    public static Histogram histogram(String name, String help, String... labelNames) {
+        return register(new Histogram(name, help, LATENCY_BUCKETS, labelNames));
+    }
+
+    public static void gauge(String name, String help, DoubleSupplier value) {
+        register(new Supplied(name, help, "gauge", value));
+    }
+
+    // Counter kept by another component, read on every scrape
+    public static void counter(String name, String help, LongSupplier value) {
+        register(new Supplied(name, help, "counter", value::getAsLong));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Metric> T register(T metric) {
+        Metric existing = metrics.putIfAbsent(metric.name, metric);
+        return existing != null ? (T) existing : metric;
+    }
+
+    public static synchronized void start(String host, int port) throws IOException {
+        if (server != null) {
+            return;
+        }
+        server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        NanoLogger.info("Serving metrics on http://{}:{}/metrics", host, server.getAddress().getPort());
+    }
+
+    public static synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    public static String scrape() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Metric metric : metrics.values()) {
+            sb.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            sb.append("# TYPE ").append(metric.name).append(' ').append(metric.type).append('\n');
+            metric.write(sb);
+        }
+        return sb.toString();
+    }
+
+    private static abstract class Metric {
+
+        final String name;
+        final String help;
+        final String type;
+
+        Metric(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        abstract void write(StringBuilder sb);
+    }
+
+    // Children by label values, a single label is its own key
+    private static abstract class Family<C> extends Metric {
+
+        final String[] labelNames;
+        final Map<String, Labelled<C>> children = new ConcurrentHashMap<String, Labelled<C>>();
+
+        Family(String name, String help, String type, String[] labelNames) {
+            super(name, help, type);
+            this.labelNames = labelNames;
+        }
+
+        abstract C create();
+
+        public C labels(String... values) {
+            if (values.length != labelNames.length) {
+                throw new IllegalArgumentException(name + " expects " + labelNames.length + " label values");
+            }
+            String key = values.length == 1 ? values[0] : String.join("\u0000", values);
+            Labelled<C> labelled = children.get(key);
+            if (labelled == null) {
+                labelled = children.computeIfAbsent(key, k -> new Labelled<C>(renderLabels(values), create()));
+            }
+            return labelled.child;
+        }
+
+        // Drops a child whose label values won't be used again, e.g. a guild's
+        public void remove(String... values) {
+            children.remove(values.length == 1 ? values[0] : String.join("\u0000", values));
+        }
+
+        private String renderLabels(String[] values) {
+            if (values.length == 0) {
+                return "";
+            }
+            StringBuilder sb = new StringBuilder("{");
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) sb.append(',');
+                sb.append(labelNames[i]).append("=\"");
+                for (int j = 0; j < values[i].length(); j++) {
+                    char c = values[i].charAt(j);
+                    if (c == '\\' || c == '"') sb.append('\\').append(c);
+                    else if (c == '\n') sb.append("\\n");
+                    else sb.append(c);
+                }
+                sb.append('"');
+            }
+            return sb.append('}').toString();
+        }
+    }
+
+    // A child and its label set, rendered once, so a scrape never looks up labels of a removed child
+    private static final class Labelled<C> {
+
+        final String labels;
+        final C child;
+
+        Labelled(String labels, C child) {
+            this.labels = labels;
+            this.child = child;
+        }
+    }
+
+    public static final class Counter extends Family<LongAdder> {
+
+        Counter(String name, String help, String[] labelNames) {
+            super(name, help, "counter", labelNames);
+        }
+
+        LongAdder create() {
+            return new LongAdder();
+        }
+
+        public void inc(String... labelValues) {
+            labels(labelValues).increment();
+        }
+
+        void write(StringBuilder sb) {
+            for (Labelled<LongAdder> labelled : children.values()) {
+                sb.append(name).append(labelled.labels).append(' ').append(labelled.child.sum()).append('\n');
+            }
+        }
+    }
+
+    public static final class Histogram extends Family<Histogram.Child> {
+
+        private final double[] buckets;
+        private final long[] bucketNanos;
+
+        Histogram(String name, String help, double[] buckets, String[] labelNames) {
+            super(name, help, "histogram", labelNames);
+            this.buckets = buckets;
+            this.bucketNanos = new long[buckets.length];
+            for (int i = 0; i < buckets.length; i++) {
+                bucketNanos[i] = (long) (buckets[i] * TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+
+        Child create() {
+            return new Child();
+        }
+
+        // Records the time since start, taken from System.nanoTime
+        public void observeSince(long start, String... labelValues) {
+            labels(labelValues).observeNanos(System.nanoTime() - start);
+        }
+
+        void write(StringBuilder sb) {
+            for (Labelled<Child> labelled : children.values()) {
+                String labels = labelled.labels;
+                // le goes last, inside the existing label set
+                String prefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+                Child child = labelled.child;
+                long cumulative = 0;
+                for (int i = 0; i <= buckets.length; i++) {
+                    cumulative += child.counts[i].sum();
+                    sb.append(name).append("_bucket").append(prefix).append("le=\"")
+                            .append(i < buckets.length ? Double.toString(buckets[i]) : "+Inf").append("\"} ").append(cumulative).append('\n');
+                }
+                sb.append(name).append("_sum").append(labels).append(' ').append(child.sum.sum()).append('\n');
+                sb.append(name).append("_count").append(labels).append(' ').append(cumulative).append('\n');
+            }
+        }
+
+        public final class Child {
+
+            private final LongAdder[] counts = new LongAdder[buckets.length + 1];
+            private final DoubleAdder sum = new DoubleAdder();
+
+            Child() {
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] = new LongAdder();
+                }
+            }
+
+            public void observeNanos(long nanos) {
+                int i = 0;
+                while (i < bucketNanos.length && nanos > bucketNanos[i]) i++;
+                counts[i].increment();
+                sum.add(nanos / 1e9);
+            }
+
+            public void observeSince(long start) {
+                observeNanos(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private static final class Supplied extends Metric {
+
+        private final DoubleSupplier value;
+
+        Supplied(String name, String help, String type, DoubleSupplier value) {
+            super(name, help, type);
+            this.value = value;
+        }
+
+        void write(StringBuilder sb) {
+            double current;
+            try {
+                current = value.getAsDouble();
+            } catch (RuntimeException e) {
+                current = Double.NaN; // One broken source must not fail the whole scrape
+            }
+            sb.append(name).append(' ').append(current).append('\n');
+        }
+    }
+}
@@ -16,7 +16,304 @@
 
 package org.gimu.discordnano.lib;
 
+import com.sedmelluq.discord.lavaplayer.player.AudioConfiguration;
+import com.sedmelluq.discord.lavaplayer.player.AudioLoadResultHandler;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayer;
+import com.sedmelluq.discord.lavaplayer.player.AudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.player.DefaultAudioPlayerManager;
+import com.sedmelluq.discord.lavaplayer.player.event.AudioEventAdapter;
+import com.sedmelluq.discord.lavaplayer.source.AudioSourceManagers;
+import com.sedmelluq.discord.lavaplayer.tools.FriendlyException;
+import com.sedmelluq.discord.lavaplayer.track.AudioPlaylist;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrack;
+import com.sedmelluq.discord.lavaplayer.track.AudioTrackEndReason;
+import com.sedmelluq.discord.lavaplayer.track.playback.AudioFrame;
+import net.dv8tion.jda.core.audio.AudioSendHandler;
+import net.dv8tion.jda.core.entities.Guild;
+import net.dv8tion.jda.core.entities.VoiceChannel;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongPredicate;
+
+/**
+ * Music player of a guild. All players share one lavaplayer manager. Its
+ * playback pool decodes and opus encodes every playing track on a thread of
+ * its own, so it grows with the guilds that play, the work per thread is set
+ * by the quality settings.
+ *
+ * The send handler passes the opus data of lavaplayer's frames to JDA without
+ * copying it. Lavaplayer 1.1 still allocates one frame and its array per 20 ms
+ * in the track's frame buffer.
+ *
+ * Frame deliveries are timed per guild, late or missing frames show up in
+ * nano_audio_frame_jitter_seconds and nano_audio_underruns_total.
+ */
 public class NanoPlayer {
-    // TODO: JDA 3.0
-}
 
+    private static final long FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private static final AudioPlayerManager manager = new DefaultAudioPlayerManager();
+    private static final Map<Long, NanoPlayer> players = new ConcurrentHashMap<Long, NanoPlayer>();
+
+    private static final NanoMetrics.Histogram frameJitter = NanoMetrics.histogram("nano_audio_frame_jitter_seconds", "Deviation of frame deliveries from the 20 ms cadence", "guild");
+    private static final NanoMetrics.Counter underruns = NanoMetrics.counter("nano_audio_underruns_total", "Frames missing while a track was playing", "guild");
+
+    private static volatile int defaultVolume = 100;
+    private static volatile MusicLibrary randomMusic; // Null if nothing plays once a queue runs out
+
+    static {
+        AudioSourceManagers.registerRemoteSources(manager);
+        AudioSourceManagers.registerLocalSource(manager);
+    }
+
+    private final long guildID;
+    private final String guildKey;
+    private final Guild guild;
+    private final AudioPlayer player;
+    private final BlockingQueue<AudioTrack> queue = new LinkedBlockingQueue<AudioTrack>();
+
+    // Encoding quality 0-10 and resampling quality trade CPU per playing guild against sound,
+    // the frame buffer is held per playing guild
+    public static void configure(int opusQuality, String resamplingQuality, int frameBufferDuration) {
+        AudioConfiguration configuration = manager.getConfiguration();
+        configuration.setOpusEncodingQuality(opusQuality);
+        configuration.setResamplingQuality(AudioConfiguration.ResamplingQuality.valueOf(resamplingQuality.toUpperCase()));
+        manager.setFrameBufferDuration(frameBufferDuration);
+    }
+
+    // Volume 0-100 of new players, random library tracks play once a queue runs out unless the library is null
+    public static void setDefaults(int volume, MusicLibrary library) {
+        defaultVolume = volume;
+        randomMusic = library;
+    }
+
+    // Creates the player on first use and registers it as the guild's audio source
+    public static NanoPlayer get(Guild guild) {
+        long guildID = Long.parseLong(guild.getId());
+        NanoPlayer player = players.get(guildID);
+        if (player == null) {
+            player = players.computeIfAbsent(guildID, k -> new NanoPlayer(guild, k));
+        }
+        return player;
+    }
+
+    public static NanoPlayer getIfPresent(long guildID) {
+        return players.get(guildID);
+    }
+
+    public static int getPlayerCount() {
+        return players.size();
+    }
+
+    public static void destroy(long guildID) {
+        NanoPlayer player = players.remove(guildID);
+        if (player != null) {
+            player.release();
+        }
+    }
+
+    // Destroys the players of matching guilds, e.g. those of a stopped shard
+    public static void destroyAll(LongPredicate guilds) {
+        Iterator<Map.Entry<Long, NanoPlayer>> iterator = players.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, NanoPlayer> entry = iterator.next();
+            if (guilds.test(entry.getKey())) {
+                iterator.remove();
+                entry.getValue().release();
+            }
+        }
+    }
+
+    // Stops every player and the decoding threads, called on shutdown
+    public static void shutdown() {
+        destroyAll(guildID -> true);
+        manager.shutdown();
+    }
+
+    private NanoPlayer(Guild guild, long guildID) {
+        this.guildID = guildID;
+        this.guildKey = Long.toString(guildID);
+        this.guild = guild;
+        this.player = manager.createPlayer();
+        player.setVolume(defaultVolume);
+        player.addListener(new TrackScheduler());
+        guild.getAudioManager().setSendingHandler(new FrameSender());
+    }
+
+    public void connect(VoiceChannel channel) {
+        guild.getAudioManager().openAudioConnection(channel);
+    }
+
+    public void disconnect() {
+        guild.getAudioManager().closeAudioConnection();
+    }
+
+    // Loads a URL, search or local file path and queues its tracks, loads of a guild finish in order
+    public Future<Void> queue(String identifier) {
+        return manager.loadItemOrdered(this, identifier, new AudioLoadResultHandler() {
+            @Override
+            public void trackLoaded(AudioTrack track) {
+                enqueue(track);
+            }
+
+            @Override
+            public void playlistLoaded(AudioPlaylist playlist) {
+                AudioTrack selected = playlist.getSelectedTrack();
+                if (selected != null) {
+                    enqueue(selected);
+                    return;
+                }
+                for (AudioTrack track : playlist.getTracks()) {
+                    enqueue(track);
+                }
+            }
+
+            @Override
+            public void noMatches() {
+                NanoLogger.warning("Nothing found for {} in guild {}", identifier, guildID);
+            }
+
+            @Override
+            public void loadFailed(FriendlyException e) {
+                NanoLogger.warning("Loading {} in guild {} failed: {}", identifier, guildID, e.getMessage());
+            }
+        });
+    }
+
+    private void enqueue(AudioTrack track) {
+        if (!player.startTrack(track, true)) {
+            queue.offer(track);
+        }
+    }
+
+    public void skip() {
+        playNext();
+    }
+
+    public void stop() {
+        queue.clear();
+        player.stopTrack();
+    }
+
+    public void setPaused(boolean paused) {
+        player.setPaused(paused);
+    }
+
+    public boolean isPaused() {
+        return player.isPaused();
+    }
+
+    public int getVolume() {
+        return player.getVolume();
+    }
+
+    public void setVolume(int volume) {
+        player.setVolume(volume);
+    }
+
+    public AudioTrack getPlayingTrack() {
+        return player.getPlayingTrack();
+    }
+
+    public List<AudioTrack> getQueue() {
+        return new ArrayList<AudioTrack>(queue);
+    }
+
+    private void playNext() {
+        AudioTrack next = queue.poll();
+        if (next != null) {
+            player.startTrack(next, false);
+            return;
+        }
+        player.stopTrack();
+        MusicLibrary library = randomMusic;
+        if (library != null) {
+            queueRandom(library);
+        }
+    }
+
+    private void queueRandom(MusicLibrary library) {
+        int size = library.size();
+        if (size > 0) {
+            String source = library.get(Integer.toString(ThreadLocalRandom.current().nextInt(size)));
+            if (!source.equals("-1")) {
+                queue(source);
+            }
+        }
+    }
+
+    private void release() {
+        queue.clear();
+        player.destroy();
+        guild.getAudioManager().setSendingHandler(null);
+        guild.getAudioManager().closeAudioConnection();
+        frameJitter.remove(guildKey);
+        underruns.remove(guildKey);
+    }
+
+    private class TrackScheduler extends AudioEventAdapter {
+
+        @Override
+        public void onTrackEnd(AudioPlayer player, AudioTrack track, AudioTrackEndReason endReason) {
+            if (endReason.mayStartNext) {
+                playNext();
+            }
+        }
+
+        @Override
+        public void onTrackStuck(AudioPlayer player, AudioTrack track, long thresholdMs) {
+            NanoLogger.warning("Track {} stuck for {} ms in guild {}", track.getInfo().title, thresholdMs, guildID);
+            playNext();
+        }
+    }
+
+    // Called by the guild's audio send thread only
+    private class FrameSender implements AudioSendHandler {
+
+        private final NanoMetrics.Histogram.Child jitter = frameJitter.labels(guildKey);
+        private final LongAdder missing = underruns.labels(guildKey);
+        private AudioFrame frame;
+        private long lastSent; // 0 after a gap, the next delivery is not timed
+
+        @Override
+        public boolean canProvide() {
+            frame = player.provide();
+            if (frame == null) {
+                if (player.getPlayingTrack() != null && !player.isPaused()) {
+                    missing.increment();
+                }
+                lastSent = 0;
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public byte[] provide20MsAudio() {
+            long now = System.nanoTime();
+            if (lastSent != 0) {
+                jitter.observeNanos(Math.abs(now - lastSent - FRAME_NANOS));
+            }
+            lastSent = now;
+            byte[] data = frame.data;
+            frame = null;
+            return data;
+        }
+
+        // Frames are opus encoded by lavaplayer already
+        @Override
+        public boolean isOpus() {
+            return true;
+        }
+    }
+}
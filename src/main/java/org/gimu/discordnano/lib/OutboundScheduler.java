@@ -0,0 +1,399 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.lib;
+
+import net.dv8tion.jda.core.entities.Message;
+import net.dv8tion.jda.core.entities.MessageChannel;
+import net.dv8tion.jda.core.requests.RestAction;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends messages, reactions and typing indicators through one queue per channel.
+ * Plain text messages arriving within the coalesce window are merged into one
+ * message up to Discord's length limit. Every route of a channel and the bot as a
+ * whole have a token bucket, actions wait here instead of running into 429s.
+ * Reactions and typing indicators are only sent once no message is waiting.
+ */
+public class OutboundScheduler {
+
+    public static final int MAX_MESSAGE_LENGTH = 2000;
+
+    private static final NanoMetrics.Histogram.Child delayTime = NanoMetrics.histogram("nano_outbound_delay_seconds", "Time actions waited before they were sent").labels();
+
+    private enum Route {
+        MESSAGE, REACTION, TYPING
+    }
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final Map<String, ChannelQueue> channels = new ConcurrentHashMap<String, ChannelQueue>();
+    private final TokenBucket global;
+
+    private final long coalesceWindow;
+    private final int queueSize;
+    private final int messageBurst;
+    private final long messagePeriod;
+    private final long reactionPeriod;
+    private final long typingPeriod;
+
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder merged = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder totalDelayNanos = new LongAdder();
+    private final AtomicLong maxDelayNanos = new AtomicLong();
+
+    public OutboundScheduler(long coalesceWindow, int queueSize, int messageBurst, long messagePeriod, long reactionPeriod, long typingPeriod, int globalRate) {
+        this.coalesceWindow = TimeUnit.MILLISECONDS.toNanos(coalesceWindow);
+        this.queueSize = queueSize;
+        this.messageBurst = messageBurst;
+        this.messagePeriod = TimeUnit.MILLISECONDS.toNanos(messagePeriod);
+        this.reactionPeriod = TimeUnit.MILLISECONDS.toNanos(reactionPeriod);
+        this.typingPeriod = TimeUnit.MILLISECONDS.toNanos(typingPeriod);
+        this.global = new TokenBucket(globalRate, TimeUnit.SECONDS.toNanos(1) / globalRate);
+
+        // One thread owns every queue drain and bucket, the REST calls themselves are asynchronous
+        executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "outbound");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        executor.scheduleWithFixedDelay(this::sweep, 1, 1, TimeUnit.MINUTES);
+    }
+
+    public boolean send(MessageChannel channel, String text) {
+        return enqueue(channel, new Outbound(Route.MESSAGE, channel, text, null, null));
+    }
+
+    public boolean send(MessageChannel channel, Message message) {
+        // Plain text messages can be merged, anything else is sent as built
+        if (message.getEmbeds().isEmpty() && !message.isTTS()) {
+            return send(channel, message.getRawContent());
+        }
+        return enqueue(channel, new Outbound(Route.MESSAGE, channel, null, message, null));
+    }
+
+    public boolean react(Message message, String emoji) {
+        return enqueue(message.getChannel(), new Outbound(Route.REACTION, message.getChannel(), null, message, emoji));
+    }
+
+    public boolean typing(MessageChannel channel) {
+        return enqueue(channel, new Outbound(Route.TYPING, channel, null, null, null));
+    }
+
+    private boolean enqueue(MessageChannel channel, Outbound outbound) {
+        while (true) {
+            ChannelQueue queue = channels.computeIfAbsent(channel.getId(), id -> new ChannelQueue());
+            synchronized (queue) {
+                if (queue.removed) {
+                    continue; // Swept concurrently, use the new one
+                }
+                if (!queue.offer(outbound)) {
+                    dropped.increment();
+                    return false;
+                }
+                queued.increment();
+                if (!queue.scheduled) {
+                    queue.scheduled = true;
+                    long delay = outbound.route == Route.MESSAGE && outbound.text != null ? coalesceWindow : 0;
+                    executor.schedule(() -> drain(queue), delay, TimeUnit.NANOSECONDS);
+                }
+                return true;
+            }
+        }
+    }
+
+    private void drain(ChannelQueue queue) {
+        while (true) {
+            Outbound next;
+            synchronized (queue) {
+                next = queue.peek();
+                if (next == null) {
+                    queue.scheduled = false;
+                    return;
+                }
+
+                long now = System.nanoTime();
+                long wait = 0;
+                if (next.text != null) {
+                    // Give later text responses the chance to join this one
+                    wait = next.queuedAt + coalesceWindow - now;
+                }
+                TokenBucket bucket = queue.bucket(next.route);
+                wait = Math.max(wait, Math.max(bucket.getDelay(now), global.getDelay(now)));
+                if (wait > 0) {
+                    // Counted once per action, however often it is rescheduled
+                    if (!next.throttled && (next.text == null || now - next.queuedAt >= coalesceWindow)) {
+                        next.throttled = true;
+                        throttled.increment();
+                    }
+                    executor.schedule(() -> drain(queue), wait, TimeUnit.NANOSECONDS);
+                    return;
+                }
+                bucket.take();
+                global.take();
+                queue.poll();
+                if (next.text != null) {
+                    next = merge(queue, next);
+                }
+            }
+            try {
+                dispatch(next);
+            } catch (RuntimeException e) {
+                NanoLogger.error("Outbound {} failed", next.route, e);
+            }
+        }
+    }
+
+    private Outbound merge(ChannelQueue queue, Outbound first) {
+        StringBuilder text = null;
+        int length = first.text.length();
+        Outbound following;
+        while ((following = queue.messages.peek()) != null && following.text != null
+                && length + 1 + following.text.length() <= MAX_MESSAGE_LENGTH) {
+            if (text == null) {
+                text = new StringBuilder(first.text);
+            }
+            text.append('\n').append(following.text);
+            length = text.length();
+            queue.messages.poll();
+            merged.increment();
+            record(following);
+        }
+        return text == null ? first : new Outbound(Route.MESSAGE, first.channel, text.toString(), null, null, first.queuedAt);
+    }
+
+    private void dispatch(Outbound outbound) {
+        RestAction<?> action;
+        switch (outbound.route) {
+            case MESSAGE:
+                action = outbound.text != null ? outbound.channel.sendMessage(outbound.text) : outbound.channel.sendMessage(outbound.message);
+                break;
+            case REACTION:
+                action = outbound.message.addReaction(outbound.emoji);
+                break;
+            default:
+                action = outbound.channel.sendTyping();
+        }
+        record(outbound);
+        sent.increment();
+        action.queue(null, error -> NanoLogger.debug("Outbound {} failed: {}", outbound.route, error));
+    }
+
+    private void record(Outbound outbound) {
+        long delay = System.nanoTime() - outbound.queuedAt;
+        totalDelayNanos.add(delay);
+        maxDelayNanos.accumulateAndGet(delay, Math::max);
+        delayTime.observeNanos(delay);
+    }
+
+    // Forgets idle channels once their buckets are full again, a new queue would start full anyway
+    private void sweep() {
+        long now = System.nanoTime();
+        Iterator<ChannelQueue> iterator = channels.values().iterator();
+        while (iterator.hasNext()) {
+            ChannelQueue queue = iterator.next();
+            synchronized (queue) {
+                if (!queue.scheduled && queue.peek() == null && queue.isIdle(now)) {
+                    queue.removed = true;
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ChannelQueue queue : channels.values()) {
+            depth += queue.size;
+        }
+        return depth;
+    }
+
+    public int getMaxChannelDepth() {
+        int depth = 0;
+        for (ChannelQueue queue : channels.values()) {
+            depth = Math.max(depth, queue.size);
+        }
+        return depth;
+    }
+
+    public int getChannelCount() {
+        return channels.size();
+    }
+
+    public long getQueuedCount() {
+        return queued.sum();
+    }
+
+    public long getSentCount() {
+        return sent.sum();
+    }
+
+    public long getMergedCount() {
+        return merged.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getThrottledCount() {
+        return throttled.sum();
+    }
+
+    public double getAverageDelayMillis() {
+        long count = sent.sum() + merged.sum();
+        return count == 0 ? 0 : totalDelayNanos.sum() / (double) count / 1_000_000;
+    }
+
+    // Longest time an action waited since startup, reading doesn't reset it
+    public double getMaxDelayMillis() {
+        return maxDelayNanos.get() / 1_000_000.0;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private static final class Outbound {
+
+        final Route route;
+        final MessageChannel channel;
+        final String text;
+        final Message message;
+        final String emoji;
+        final long queuedAt;
+        boolean throttled; // Guarded by the channel queue
+
+        Outbound(Route route, MessageChannel channel, String text, Message message, String emoji) {
+            this(route, channel, text, message, emoji, System.nanoTime());
+        }
+
+        Outbound(Route route, MessageChannel channel, String text, Message message, String emoji, long queuedAt) {
+            this.route = route;
+            this.channel = channel;
+            this.text = text;
+            this.message = message;
+            this.emoji = emoji;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    private final class ChannelQueue {
+
+        final ArrayDeque<Outbound> messages = new ArrayDeque<Outbound>();
+        final ArrayDeque<Outbound> low = new ArrayDeque<Outbound>();
+        final TokenBucket messageBucket = new TokenBucket(messageBurst, messagePeriod / messageBurst);
+        final TokenBucket reactionBucket = new TokenBucket(1, reactionPeriod);
+        final TokenBucket typingBucket = new TokenBucket(1, typingPeriod);
+        volatile int size;
+        boolean scheduled;
+        boolean removed;
+
+        boolean offer(Outbound outbound) {
+            if (outbound.route == Route.MESSAGE) {
+                // A typing indicator sent after the reply would linger
+                low.removeIf(pending -> pending.route == Route.TYPING);
+                if (size >= queueSize) {
+                    if (low.pollFirst() == null) {
+                        return false;
+                    }
+                    dropped.increment();
+                }
+                messages.add(outbound);
+            } else {
+                if (size >= queueSize) {
+                    return false;
+                }
+                if (outbound.route == Route.TYPING && low.stream().anyMatch(pending -> pending.route == Route.TYPING)) {
+                    return true;
+                }
+                low.add(outbound);
+            }
+            size = messages.size() + low.size();
+            return true;
+        }
+
+        Outbound peek() {
+            Outbound next = messages.peek();
+            return next != null ? next : low.peek();
+        }
+
+        void poll() {
+            if (messages.poll() == null) {
+                low.poll();
+            }
+            size = messages.size() + low.size();
+        }
+
+        TokenBucket bucket(Route route) {
+            switch (route) {
+                case MESSAGE:
+                    return messageBucket;
+                case REACTION:
+                    return reactionBucket;
+                default:
+                    return typingBucket;
+            }
+        }
+
+        boolean isIdle(long now) {
+            return messageBucket.isFull(now) && reactionBucket.isFull(now) && typingBucket.isFull(now);
+        }
+    }
+
+    // Only touched by the outbound thread and under the channel lock
+    private static final class TokenBucket {
+
+        final int capacity;
+        final long nanosPerToken;
+        double tokens;
+        long updated = System.nanoTime();
+
+        TokenBucket(int capacity, long nanosPerToken) {
+            this.capacity = capacity;
+            this.nanosPerToken = nanosPerToken;
+            this.tokens = capacity;
+        }
+
+        long getDelay(long now) {
+            refill(now);
+            return tokens >= 1 ? 0 : (long) ((1 - tokens) * nanosPerToken);
+        }
+
+        void take() {
+            tokens -= 1;
+        }
+
+        boolean isFull(long now) {
+            refill(now);
+            return tokens >= capacity;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(capacity, tokens + (now - updated) / (double) nanosPerToken);
+            updated = now;
+        }
+    }
+}
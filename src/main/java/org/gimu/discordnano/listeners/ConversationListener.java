@@ -16,48 +16,30 @@
 
 package org.gimu.discordnano.listeners;
 
-import com.google.code.chatterbotapi.ChatterBot;
-import com.google.code.chatterbotapi.ChatterBotFactory;
-import com.google.code.chatterbotapi.ChatterBotSession;
-import com.google.code.chatterbotapi.ChatterBotType;
-import net.dv8tion.jda.core.JDA;
 import net.dv8tion.jda.core.entities.Message;
-import net.dv8tion.jda.core.events.message.guild.GuildMessageReceivedEvent;
-import net.dv8tion.jda.core.hooks.ListenerAdapter;
+import org.gimu.discordnano.DiscordNano;
+import org.gimu.discordnano.lib.NanoLogger;
 
-public class ConversationListener extends ListenerAdapter {
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 
-    public static JDA jda;
+// Messages mentioning the bot, routed here by MessageDispatcher
+public class ConversationListener {
 
-    private ChatterBotFactory factory = new ChatterBotFactory();
-    private ChatterBot bot = null;
-
-    public ConversationListener(JDA jda) {
-        this.jda = jda;
-    }
-
-    @Override
-    public void onGuildMessageReceived(GuildMessageReceivedEvent event) {
-        Message message = event.getMessage();
-
-        // Conversation (CleverBot)
-        if (message.isMentioned(jda.getSelfUser())) {
-            message.getChannel().sendTyping().queue();
-            try {
-                bot = factory.create(ChatterBotType.CLEVERBOT);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            ChatterBotSession botSession = bot.createSession();
-
-            String response = "";
-            try {
-                response = botSession.think(message.getContent());
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-
-            message.getChannel().sendMessage(response).queue();
+    void handleMention(Message message) {
+        // Conversation (CleverBot), answered asynchronously
+        CompletableFuture<String> response = DiscordNano.conversationEngine.think(message.getGuild().getId(), message.getChannel().getId(), message.getContent());
+        if (!response.isDone()) {
+            DiscordNano.outbound.typing(message.getChannel());
         }
+        response.whenComplete((reply, error) -> {
+            if (error == null) {
+                DiscordNano.outbound.send(message.getChannel(), reply);
+            } else if (error instanceof RejectedExecutionException) {
+                DiscordNano.outbound.react(message, "⏳");
+            } else {
+                NanoLogger.debug("Conversation failed: {}", error);
+            }
+        });
     }
 }
@@ -0,0 +1,113 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.listeners;
+
+import net.dv8tion.jda.core.entities.Message;
+import net.dv8tion.jda.core.events.message.guild.GuildMessageReceivedEvent;
+import net.dv8tion.jda.core.hooks.ListenerAdapter;
+import org.gimu.discordnano.DiscordNano;
+import org.gimu.discordnano.lib.NanoGuild;
+import org.gimu.discordnano.lib.NanoGuildLibrary;
+import org.gimu.discordnano.lib.NanoMetrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Single entry point for guild messages. Each message is classified once on
+ * its raw content, mentions are only resolved for the pipeline that handles
+ * it, which is the command handler or the conversation engine.
+ */
+public class MessageDispatcher extends ListenerAdapter {
+
+    private static final long DISCORD_EPOCH = 1420070400000L;
+
+    private static final NanoMetrics.Histogram.Child handlerTime = NanoMetrics.histogram("nano_event_handler_seconds", "Time spent in event handlers", "listener", "event").labels("dispatcher", "message");
+    private static final NanoMetrics.Histogram.Child gatewayLag = NanoMetrics.histogram("nano_gateway_lag_seconds", "Delay between a message being created and received").labels();
+    private static final NanoMetrics.Counter routes = NanoMetrics.counter("nano_inbound_messages_total", "Received guild messages by where they were routed", "route");
+
+    private static final LongAdder bot = routes.labels("bot");
+    private static final LongAdder ignored = routes.labels("ignored");
+    private static final LongAdder otherChannel = routes.labels("other_channel");
+    private static final LongAdder command = routes.labels("command");
+    private static final LongAdder conversation = routes.labels("conversation");
+
+    // Guilds of this dispatcher's shard
+    private final NanoGuildLibrary guildLibrary;
+    private final CommandListener commandListener;
+    private final ConversationListener conversationListener;
+    private volatile String[] selfMentions;
+
+    public MessageDispatcher(NanoGuildLibrary guildLibrary, CommandListener commandListener, ConversationListener conversationListener) {
+        this.guildLibrary = guildLibrary;
+        this.commandListener = commandListener;
+        this.conversationListener = conversationListener;
+    }
+
+    @Override
+    public void onGuildMessageReceived(GuildMessageReceivedEvent event) {
+        long start = System.nanoTime();
+        try {
+            dispatch(event.getMessage());
+        } finally {
+            handlerTime.observeSince(start);
+        }
+    }
+
+    private void dispatch(Message message) {
+        // Time from Discord creating the message until it reached us
+        long created = (Long.parseLong(message.getId()) >>> 22) + DISCORD_EPOCH;
+        gatewayLag.observeNanos(TimeUnit.MILLISECONDS.toNanos(Math.max(0, System.currentTimeMillis() - created)));
+
+        if (message.getAuthor().isBot()) {
+            bot.increment();
+            return;
+        }
+
+        String raw = message.getRawContent();
+        boolean prefixed = raw.startsWith(DiscordNano.PREFIX);
+        if (prefixed && isCommandChannel(message)) {
+            command.increment();
+            commandListener.handleCommand(message);
+        } else if (mentionsSelf(message, raw)) {
+            // Every mention is answered, also prefixed ones outside the command channel
+            conversation.increment();
+            conversationListener.handleMention(message);
+        } else if (prefixed) {
+            otherChannel.increment();
+        } else {
+            ignored.increment();
+        }
+    }
+
+    private boolean isCommandChannel(Message message) {
+        NanoGuild nanoGuild = guildLibrary.get(Long.parseLong(message.getGuild().getId()));
+        return nanoGuild != null && nanoGuild.getTextchannel() == Long.parseLong(message.getChannel().getId());
+    }
+
+    // Raw content holds user mentions as <@id> or <@!id> for nicknames
+    private boolean mentionsSelf(Message message, String raw) {
+        if (raw.indexOf("<@") < 0) {
+            return false;
+        }
+        String[] mentions = selfMentions;
+        if (mentions == null) {
+            String id = message.getJDA().getSelfUser().getId();
+            selfMentions = mentions = new String[]{"<@" + id + ">", "<@!" + id + ">"};
+        }
+        return raw.contains(mentions[0]) || raw.contains(mentions[1]);
+    }
+}
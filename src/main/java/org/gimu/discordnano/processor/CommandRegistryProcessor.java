@@ -0,0 +1,195 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * Generates {@code org.gimu.discordnano.commands.CommandRegistry}, which
+ * registers every {@code @MainCommand} and {@code @SubCommand} class with plain
+ * constructor calls. Replaces scanning the classpath on startup.
+ */
+@SupportedAnnotationTypes("*") // Runs even without commands, the registry always has to exist
+public class CommandRegistryProcessor extends AbstractProcessor {
+
+    private static final String PACKAGE = "org.gimu.discordnano.commands";
+    private static final String REGISTRY = "CommandRegistry";
+
+    private boolean generated;
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (generated || roundEnv.processingOver()) {
+            return false;
+        }
+        generated = true;
+
+        TypeElement mainAnnotation = processingEnv.getElementUtils().getTypeElement(PACKAGE + ".MainCommand");
+        TypeElement subAnnotation = processingEnv.getElementUtils().getTypeElement(PACKAGE + ".SubCommand");
+        TypeElement mainType = processingEnv.getElementUtils().getTypeElement(PACKAGE + ".AbstractCommand");
+        TypeElement subType = processingEnv.getElementUtils().getTypeElement(PACKAGE + ".AbstractSubCommand");
+
+        StringBuilder body = new StringBuilder();
+
+        // Main commands first, sub commands are attached to them
+        int count = 0;
+        for (TypeElement command : sorted(roundEnv.getElementsAnnotatedWith(mainAnnotation))) {
+            Map<String, Object> values = values(command, mainAnnotation);
+            if (!check(command, mainType, 3) || !(Boolean) values.get("isEnabled")) {
+                continue;
+            }
+            String variable = "mainCommand" + count++;
+            body.append("        ").append(command.getQualifiedName()).append(' ').append(variable)
+                    .append(" = new ").append(command.getQualifiedName()).append('(')
+                    .append(literal(values.get("description"))).append(", ")
+                    .append(literal(values.get("usage"))).append(", ")
+                    .append(literal(values.get("alias"))).append(");\n");
+            appendThrottle(body, variable, values);
+            body.append("        handler.addMainCommand(").append(literal(values.get("alias")))
+                    .append(", ").append(variable).append(");\n");
+        }
+
+        count = 0;
+        for (TypeElement command : sorted(roundEnv.getElementsAnnotatedWith(subAnnotation))) {
+            Map<String, Object> values = values(command, subAnnotation);
+            if (!check(command, subType, 2)) {
+                continue;
+            }
+            String variable = "subCommand" + count++;
+            body.append("        ").append(command.getQualifiedName()).append(' ').append(variable)
+                    .append(" = new ").append(command.getQualifiedName()).append('(')
+                    .append(literal(values.get("description"))).append(", ")
+                    .append(literal(values.get("usage"))).append(");\n");
+            appendThrottle(body, variable, values);
+            for (Object alias : (List<?>) values.get("alias")) {
+                body.append("        handler.addSubCommand(").append(literal(((AnnotationValue) alias).getValue()))
+                        .append(", ").append(literal(values.get("mainCommandAlias")))
+                        .append(", ").append(variable).append(");\n");
+            }
+        }
+
+        write(body.toString());
+        return false;
+    }
+
+    // One throttle per command, shared by all aliases of a sub command
+    private void appendThrottle(StringBuilder body, String variable, Map<String, Object> values) {
+        body.append("        ").append(variable).append(".setThrottle(new CommandThrottle(")
+                .append(literal(values.get("userBurst"))).append(", ")
+                .append(literal(values.get("userInterval"))).append(", ")
+                .append(literal(values.get("guildBurst"))).append(", ")
+                .append(literal(values.get("guildInterval"))).append("));\n");
+    }
+
+    private void write(String body) {
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(PACKAGE + "." + REGISTRY);
+            try (Writer writer = file.openWriter()) {
+                writer.write("package " + PACKAGE + ";\n\n"
+                        + "// Generated by " + getClass().getName() + ", do not edit\n"
+                        + "public final class " + REGISTRY + " {\n\n"
+                        + "    private " + REGISTRY + "() {\n"
+                        + "    }\n\n"
+                        + "    public static void registerAll(CommandHandler handler) {\n"
+                        + body
+                        + "    }\n"
+                        + "}\n");
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Could not write " + REGISTRY + ": " + e.getMessage());
+        }
+    }
+
+    // Has to be a concrete command with an accessible (String...) constructor of the given arity
+    private boolean check(TypeElement command, TypeElement superType, int arity) {
+        if (command.getKind() != ElementKind.CLASS || command.getModifiers().contains(Modifier.ABSTRACT)) {
+            return error(command, "Commands have to be concrete classes");
+        }
+        if (command.getNestingKind().isNested() && !command.getModifiers().contains(Modifier.STATIC)) {
+            return error(command, "Nested commands have to be static");
+        }
+        if (!processingEnv.getTypeUtils().isSubtype(command.asType(), superType.asType())) {
+            return error(command, "Commands have to extend " + superType.getSimpleName());
+        }
+
+        TypeMirror string = processingEnv.getElementUtils().getTypeElement("java.lang.String").asType();
+        boolean samePackage = processingEnv.getElementUtils().getPackageOf(command).getQualifiedName().contentEquals(PACKAGE);
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(command.getEnclosedElements())) {
+            List<? extends VariableElement> parameters = constructor.getParameters();
+            if (parameters.size() != arity) {
+                continue;
+            }
+            boolean strings = true;
+            for (VariableElement parameter : parameters) {
+                strings &= processingEnv.getTypeUtils().isSameType(parameter.asType(), string);
+            }
+            if (strings) {
+                Set<Modifier> modifiers = constructor.getModifiers();
+                if (modifiers.contains(Modifier.PUBLIC) || (samePackage && !modifiers.contains(Modifier.PRIVATE))) {
+                    return true;
+                }
+                return error(command, "Command constructors have to be public");
+            }
+        }
+        return error(command, "Commands need a constructor taking " + arity + " Strings");
+    }
+
+    private boolean error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+        return false;
+    }
+
+    private Map<String, Object> values(TypeElement command, TypeElement annotation) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        for (AnnotationMirror mirror : command.getAnnotationMirrors()) {
+            if (!mirror.getAnnotationType().asElement().equals(annotation)) {
+                continue;
+            }
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+                    : processingEnv.getElementUtils().getElementValuesWithDefaults(mirror).entrySet()) {
+                values.put(entry.getKey().getSimpleName().toString(), entry.getValue().getValue());
+            }
+        }
+        return values;
+    }
+
+    private String literal(Object value) {
+        return processingEnv.getElementUtils().getConstantExpression(value);
+    }
+
+    // Stable registration order between builds
+    private static List<TypeElement> sorted(Set<? extends Element> elements) {
+        List<TypeElement> types = new ArrayList<TypeElement>(ElementFilter.typesIn(elements));
+        types.sort(Comparator.comparing(type -> type.getQualifiedName().toString()));
+        return types;
+    }
+}
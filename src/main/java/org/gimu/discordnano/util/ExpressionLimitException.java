@@ -0,0 +1,29 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.gimu.discordnano.util;
+
+/**
+ * Thrown by {@link MathUtil} for an expression over one of its limits. The
+ * message names the limit and is meant to be shown to the user as it is, it
+ * is no IllegalArgumentException so it doesn't turn into a usage reply.
+ */
+public class ExpressionLimitException extends RuntimeException {
+
+    public ExpressionLimitException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.util;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.DateUtils;
+import org.gimu.discordnano.DiscordNano;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Response cache in front of {@link HTTPClient} GET requests. Entries live for the
+ * TTL of the longest matching URL prefix unless the response carries its own
+ * Cache-Control or Expires header, concurrent requests for the same resource share
+ * one upstream call and expired entries with an ETag or Last-Modified header are
+ * revalidated instead of downloaded again.
+ */
+public class HTTPCache {
+
+    private static HTTPCache shared;
+
+    private final HTTPClient client;
+    private final Cache<String, Entry> cache;
+    private final Map<String, CompletableFuture<HTTPResponse>> inFlight = new ConcurrentHashMap<String, CompletableFuture<HTTPResponse>>();
+    private final Map<String, Long> ttls = new ConcurrentHashMap<String, Long>();
+    private final long defaultTTL;
+    private final long staleRetention;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder revalidated = new LongAdder();
+
+    public HTTPCache(HTTPClient client, long maxBytes, long defaultTTL, long staleRetention, TimeUnit unit) {
+        this.client = client;
+        this.defaultTTL = unit.toNanos(defaultTTL);
+        this.staleRetention = unit.toNanos(staleRetention);
+        // Caffeine evicts by W-TinyLFU, one-off lookups don't push out popular entries
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((String key, Entry entry) -> (int) Math.min(Integer.MAX_VALUE, 2L * key.length() + entry.response.getBody().length))
+                .expireAfter(new Expiry<String, Entry>() {
+                    @Override
+                    public long expireAfterCreate(String key, Entry entry, long currentTime) {
+                        return entry.retainNanos;
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, Entry entry, long currentTime, long currentDuration) {
+                        return entry.retainNanos;
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, Entry entry, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    public static synchronized HTTPCache getShared() {
+        if (shared == null) {
+            JSONObject config = DiscordNano.config;
+            shared = new HTTPCache(HTTPClient.getShared(),
+                    config.optLong("http_cache_max_bytes", 16 * 1024 * 1024),
+                    config.optLong("http_cache_default_ttl", 0),
+                    config.optLong("http_cache_stale_retention", 3600),
+                    TimeUnit.SECONDS);
+            JSONObject ttls = config.optJSONObject("http_cache_ttls");
+            if (ttls != null) {
+                for (String prefix : ttls.keySet()) {
+                    shared.setTTL(prefix, ttls.getLong(prefix), TimeUnit.SECONDS);
+                }
+            }
+        }
+        return shared;
+    }
+
+    // TTL for every URL starting with the prefix, the longest matching prefix wins
+    public void setTTL(String urlPrefix, long ttl, TimeUnit unit) {
+        ttls.put(urlPrefix, unit.toNanos(ttl));
+    }
+
+    public HTTPResponse get(String url) throws IOException {
+        return get(url, Collections.<String, String>emptyMap());
+    }
+
+    public HTTPResponse get(String url, Map<String, String> headers) throws IOException {
+        return get(url, headers, client.getMaxResponseBytes());
+    }
+
+    // Fails instead of downloading a body larger than maxBytes (<= 0 for no limit)
+    public HTTPResponse get(String url, Map<String, String> headers, long maxBytes) throws IOException {
+        String key = key(url, headers);
+        Entry entry = cache.getIfPresent(key);
+        if (entry != null && entry.isFresh()) {
+            hits.increment();
+            return entry.response;
+        }
+
+        CompletableFuture<HTTPResponse> call = new CompletableFuture<HTTPResponse>();
+        CompletableFuture<HTTPResponse> running = inFlight.putIfAbsent(key, call);
+        if (running != null) {
+            coalesced.increment();
+            return await(running);
+        }
+
+        try {
+            // The previous call may have finished between the lookup and the registration
+            entry = cache.getIfPresent(key);
+            HTTPResponse response;
+            if (entry != null && entry.isFresh()) {
+                hits.increment();
+                response = entry.response;
+            } else {
+                misses.increment();
+                response = fetch(key, url, headers, entry, maxBytes);
+            }
+            call.complete(response);
+            return response;
+        } catch (IOException | RuntimeException e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, call);
+        }
+    }
+
+    private HTTPResponse fetch(String key, String url, Map<String, String> headers, Entry stale, long maxBytes) throws IOException {
+        HttpGet request = new HttpGet(url);
+        headers.forEach(request::setHeader);
+        if (stale != null) {
+            if (stale.etag != null) {
+                request.setHeader("If-None-Match", stale.etag);
+            }
+            if (stale.lastModified != null) {
+                request.setHeader("If-Modified-Since", stale.lastModified);
+            }
+        }
+
+        HTTPResponse response = client.execute(request, maxBytes);
+        if (response.getStatus() == 304 && stale != null) {
+            revalidated.increment();
+            long freshness = getFreshness(url, response);
+            cache.put(key, new Entry(stale.response, Math.max(freshness, 0)));
+            return stale.response;
+        }
+
+        long freshness = response.getStatus() == 200 ? getFreshness(url, response) : -1;
+        Entry entry = freshness >= 0 ? new Entry(response, freshness) : null;
+        if (entry != null && entry.retainNanos > 0) {
+            cache.put(key, entry);
+        } else if (stale != null) {
+            cache.invalidate(key);
+        }
+        return response;
+    }
+
+    // Nanoseconds the response stays fresh, -1 if it must not be stored
+    private long getFreshness(String url, HTTPResponse response) {
+        String cacheControl = response.getHeader("Cache-Control");
+        if (cacheControl != null) {
+            long maxAge = -1;
+            for (String directive : cacheControl.toLowerCase().split(",")) {
+                directive = directive.trim();
+                if (directive.equals("no-store")) {
+                    return -1;
+                } else if (directive.equals("no-cache")) {
+                    return 0;
+                } else if (directive.startsWith("max-age=")) {
+                    try {
+                        maxAge = TimeUnit.SECONDS.toNanos(Long.parseLong(directive.substring(8).replace("\"", "")));
+                    } catch (NumberFormatException e) {
+                        return 0;
+                    }
+                }
+            }
+            if (maxAge >= 0) {
+                return maxAge;
+            }
+        }
+
+        String expires = response.getHeader("Expires");
+        if (expires != null) {
+            Date date = DateUtils.parseDate(expires);
+            return date == null ? 0 : Math.max(0, TimeUnit.MILLISECONDS.toNanos(date.getTime() - System.currentTimeMillis()));
+        }
+        return getTTL(url);
+    }
+
+    private long getTTL(String url) {
+        long ttl = defaultTTL;
+        int matched = -1;
+        for (Map.Entry<String, Long> rule : ttls.entrySet()) {
+            String prefix = rule.getKey();
+            if (prefix.length() > matched && url.startsWith(prefix)) {
+                matched = prefix.length();
+                ttl = rule.getValue();
+            }
+        }
+        return ttl;
+    }
+
+    private static String key(String url, Map<String, String> headers) {
+        if (headers.isEmpty()) {
+            return url;
+        }
+        // Different credentials or API keys must not share an entry
+        StringBuilder key = new StringBuilder(url);
+        for (Map.Entry<String, String> header : new TreeMap<String, String>(headers).entrySet()) {
+            key.append('\n').append(header.getKey().toLowerCase()).append(':').append(header.getValue());
+        }
+        return key.toString();
+    }
+
+    private static HTTPResponse await(CompletableFuture<HTTPResponse> call) throws IOException {
+        try {
+            return call.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw new IOException(cause.getMessage(), cause);
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    public void invalidate(String url) {
+        cache.asMap().keySet().removeIf(key -> key.equals(url) || key.startsWith(url + "\n"));
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public long getRevalidated() {
+        return revalidated.sum();
+    }
+
+    public long getEvictions() {
+        return cache.stats().evictionCount();
+    }
+
+    public long getSize() {
+        return cache.estimatedSize();
+    }
+
+    public double getHitRate() {
+        long hits = getHits();
+        long total = hits + getMisses() + getCoalesced();
+        return total == 0 ? 0 : (double) (hits + getCoalesced()) / total;
+    }
+
+    private final class Entry {
+
+        final HTTPResponse response;
+        final String etag;
+        final String lastModified;
+        final long freshUntil;
+        final long retainNanos;
+
+        Entry(HTTPResponse response, long freshness) {
+            this.response = response;
+            this.etag = response.getHeader("ETag");
+            this.lastModified = response.getHeader("Last-Modified");
+            this.freshUntil = System.nanoTime() + freshness;
+            // Entries that can be revalidated outlive their freshness
+            this.retainNanos = etag != null || lastModified != null ? freshness + staleRetention : freshness;
+        }
+
+        boolean isFresh() {
+            return System.nanoTime() - freshUntil < 0;
+        }
+    }
+}
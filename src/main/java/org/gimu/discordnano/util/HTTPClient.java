@@ -0,0 +1,302 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.util;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.gimu.discordnano.DiscordNano;
+import org.gimu.discordnano.lib.NanoMetrics;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared HTTP client for every outbound call. Connections are pooled and kept
+ * alive, each host gets a limited number of concurrent connections, every
+ * request has connect and read timeouts and gzip responses are decoded
+ * transparently. Buffered responses are capped in size, a larger body aborts
+ * the request instead of filling the heap.
+ */
+public class HTTPClient {
+
+    public static final String USER_AGENT = "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/53.0.2785.143 Safari/537.36";
+
+    private static HTTPClient shared;
+
+    private static final String[] STATUS_CLASSES = {"1xx", "2xx", "3xx", "4xx", "5xx"};
+    private static final NanoMetrics.Histogram requestTime = NanoMetrics.histogram("nano_http_request_seconds", "Outbound HTTP request time by host", "host");
+    private static final NanoMetrics.Counter responses = NanoMetrics.counter("nano_http_responses_total", "Outbound HTTP responses by host and status class", "host", "status");
+
+    private final PoolingHttpClientConnectionManager connections;
+    private final CloseableHttpClient client;
+    private final ExecutorService executor;
+    private final long maxResponseBytes;
+
+    // maxResponseBytes <= 0 buffers responses of any size
+    public HTTPClient(int maxConnections, int maxPerHost, int connectTimeout, int readTimeout, long keepAlive, boolean gzip, int asyncThreads, long maxResponseBytes) {
+        this.maxResponseBytes = maxResponseBytes;
+        connections = new PoolingHttpClientConnectionManager();
+        connections.setMaxTotal(maxConnections);
+        connections.setDefaultMaxPerRoute(maxPerHost); // Further requests to a host wait for a free connection
+        connections.setValidateAfterInactivity(2000);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .build();
+
+        HttpClientBuilder builder = HttpClients.custom()
+                .setConnectionManager(connections)
+                .setDefaultRequestConfig(requestConfig)
+                .setUserAgent(USER_AGENT)
+                .setKeepAliveStrategy((response, context) -> {
+                    // Honor the server's Keep-Alive header, otherwise keep connections for the configured time
+                    long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return duration > 0 ? Math.min(duration, keepAlive) : keepAlive;
+                })
+                .evictExpiredConnections()
+                .evictIdleConnections(keepAlive, TimeUnit.MILLISECONDS);
+        if (!gzip) {
+            builder.disableContentCompression();
+        }
+        client = builder.build();
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(asyncThreads, asyncThreads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), runnable -> {
+            Thread thread = new Thread(runnable, "http-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        ((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+    }
+
+    public static synchronized HTTPClient getShared() {
+        if (shared == null) {
+            JSONObject config = DiscordNano.config;
+            shared = new HTTPClient(
+                    config.optInt("http_max_connections", 50),
+                    config.optInt("http_max_per_host", 8),
+                    config.optInt("http_connect_timeout", 5000),
+                    config.optInt("http_read_timeout", 10000),
+                    config.optLong("http_keep_alive", 30000),
+                    config.optBoolean("http_gzip", true),
+                    config.optInt("http_async_threads", 8),
+                    config.optLong("http_max_response_bytes", 16 * 1024 * 1024));
+        }
+        return shared;
+    }
+
+    public HTTPResponse get(String url) throws IOException {
+        return get(url, Collections.<String, String>emptyMap());
+    }
+
+    public HTTPResponse get(String url, Map<String, String> headers) throws IOException {
+        HttpGet request = new HttpGet(url);
+        headers.forEach(request::setHeader);
+        return execute(request);
+    }
+
+    public HTTPResponse post(String url, ContentType contentType, byte[] body) throws IOException {
+        return post(url, contentType, body, Collections.<String, String>emptyMap());
+    }
+
+    public HTTPResponse post(String url, ContentType contentType, byte[] body, Map<String, String> headers) throws IOException {
+        HttpPost request = new HttpPost(url);
+        headers.forEach(request::setHeader);
+        request.setEntity(new ByteArrayEntity(body, contentType));
+        return execute(request);
+    }
+
+    public HTTPResponse execute(HttpUriRequest request) throws IOException {
+        return execute(request, maxResponseBytes);
+    }
+
+    // Buffers the whole response, fails once the body exceeds maxBytes (<= 0 for no limit)
+    public HTTPResponse execute(HttpUriRequest request, long maxBytes) throws IOException {
+        String url = request.getURI().toString();
+        return exchange(request, (response, in) -> {
+            Map<String, String> headers = new HashMap<String, String>();
+            for (Header header : response.getAllHeaders()) {
+                headers.put(header.getName().toLowerCase(), header.getValue());
+            }
+            HttpEntity entity = response.getEntity();
+            long length = entity != null ? entity.getContentLength() : 0;
+            if (maxBytes > 0 && length > maxBytes) {
+                throw new IOException("Response of " + url + " exceeds " + maxBytes + " bytes");
+            }
+            return new HTTPResponse(url, response.getStatusLine().getStatusCode(), headers, readBody(in, length, maxBytes, url));
+        });
+    }
+
+    private static byte[] readBody(InputStream in, long length, long maxBytes, String url) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(length > 0 ? (int) length : 4096);
+        byte[] buffer = new byte[8192];
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            total += read;
+            if (maxBytes > 0 && total > maxBytes) {
+                throw new IOException("Response of " + url + " exceeds " + maxBytes + " bytes");
+            }
+            body.write(buffer, 0, read);
+        }
+        return body.toByteArray();
+    }
+
+    // Streams the response into the handler, the connection returns to the pool afterwards
+    public <T> T execute(HttpUriRequest request, ResponseHandler<T> handler) throws IOException {
+        String host = getHost(request);
+        long start = System.nanoTime();
+        try {
+            return client.execute(request, response -> {
+                recordStatus(host, response.getStatusLine().getStatusCode());
+                return handler.handleResponse(response);
+            });
+        } catch (IOException e) {
+            responses.inc(host, "error");
+            throw e;
+        } finally {
+            requestTime.observeSince(start, host);
+        }
+    }
+
+    // Hands the body stream to the handler. Error responses fail like HttpURLConnection does.
+    public <T> T stream(HttpUriRequest request, StreamHandler<T> handler) throws IOException {
+        return exchange(request, (response, in) -> {
+            int status = response.getStatusLine().getStatusCode();
+            if (status >= 400) {
+                throw new IOException("Server returned HTTP response code: " + status + " for URL: " + request.getURI());
+            }
+            return handler.handle(in);
+        });
+    }
+
+    // If the handler stops or fails before the end of the body, the connection is dropped instead of drained
+    private <T> T exchange(HttpUriRequest request, ExchangeHandler<T> handler) throws IOException {
+        String host = getHost(request);
+        long start = System.nanoTime();
+        CloseableHttpResponse response;
+        try {
+            response = client.execute(request);
+        } catch (IOException e) {
+            responses.inc(host, "error");
+            requestTime.observeSince(start, host);
+            throw e;
+        }
+        boolean finished = false;
+        try {
+            recordStatus(host, response.getStatusLine().getStatusCode());
+            HttpEntity entity = response.getEntity();
+            InputStream in = entity != null ? entity.getContent() : new ByteArrayInputStream(new byte[0]);
+            T result = handler.handle(response, in);
+            finished = in.read() == -1;
+            return result;
+        } finally {
+            if (!finished) {
+                request.abort();
+            }
+            response.close();
+            requestTime.observeSince(start, host);
+        }
+    }
+
+    private static String getHost(HttpUriRequest request) {
+        String host = request.getURI().getHost();
+        return host != null ? host : "unknown";
+    }
+
+    private static void recordStatus(String host, int status) {
+        int statusClass = status / 100 - 1;
+        responses.inc(host, statusClass >= 0 && statusClass < STATUS_CLASSES.length ? STATUS_CLASSES[statusClass] : "other");
+    }
+
+    @FunctionalInterface
+    public interface StreamHandler<T> {
+        T handle(InputStream in) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface ExchangeHandler<T> {
+        T handle(CloseableHttpResponse response, InputStream in) throws IOException;
+    }
+
+    public CompletableFuture<HTTPResponse> getAsync(String url) {
+        return getAsync(url, Collections.<String, String>emptyMap());
+    }
+
+    public CompletableFuture<HTTPResponse> getAsync(String url, Map<String, String> headers) {
+        return async(() -> get(url, headers));
+    }
+
+    public CompletableFuture<HTTPResponse> postAsync(String url, ContentType contentType, byte[] body) {
+        return async(() -> post(url, contentType, body));
+    }
+
+    private CompletableFuture<HTTPResponse> async(Callable<HTTPResponse> call) {
+        CompletableFuture<HTTPResponse> result = new CompletableFuture<HTTPResponse>();
+        executor.execute(() -> {
+            try {
+                result.complete(call.call());
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    public long getMaxResponseBytes() {
+        return maxResponseBytes;
+    }
+
+    public int getLeasedConnections() {
+        return connections.getTotalStats().getLeased();
+    }
+
+    public int getPendingRequests() {
+        return connections.getTotalStats().getPending();
+    }
+
+    public int getIdleConnections() {
+        return connections.getTotalStats().getAvailable();
+    }
+
+    public void close() throws IOException {
+        executor.shutdownNow();
+        client.close();
+    }
+}
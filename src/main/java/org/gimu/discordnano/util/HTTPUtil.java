@@ -16,24 +16,20 @@
 package org.gimu.discordnano.util;
 
 import org.apache.commons.codec.binary.Base64;
-import java.io.DataOutputStream;
+import org.apache.http.entity.ContentType;
+
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 
 public class HTTPUtil {
 
-	private static final String USER_AGENT = "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/53.0.2785.143 Safari/537.36";
-
 	public static InputStream sendAuthGet(String target, String parameters, String username, String password) throws IOException {
-		URL url = new URL(target + "?" + parameters);
-		URLConnection uc = url.openConnection();
-		uc.setRequestProperty("User-Agent", USER_AGENT);
 		String preAuth = username + ":" + password;
 		String basicAuth = "Basic " + new String(new Base64().encode(preAuth.getBytes()));
-		uc.setRequestProperty("Authorization", basicAuth);
 
-		return uc.getInputStream();
+		return body(HTTPCache.getShared().get(target + "?" + parameters, Collections.singletonMap("Authorization", basicAuth)));
 	}
 
 	public static InputStream sendGet(String url) throws IOException {
@@ -41,11 +37,7 @@ public class HTTPUtil {
 	}
 
 	public static InputStream sendGet(String url, String parameters) throws IOException {
-		URL object = new URL(url + "?" + parameters);
-		HttpURLConnection connection = (HttpURLConnection)object.openConnection();
-		connection.setRequestMethod("GET");
-		connection.setRequestProperty("User-Agent", USER_AGENT);
-		return connection.getInputStream();
+		return body(HTTPCache.getShared().get(url + "?" + parameters));
 	}
 
 	public static InputStream sendPost(String url) throws IOException {
@@ -53,17 +45,14 @@ public class HTTPUtil {
 	}
 
 	public static InputStream sendPost(String url, String parameters) throws IOException {
-		URL object = new URL(url);
-		HttpURLConnection connection = (HttpURLConnection)object.openConnection();
-		connection.setRequestMethod("POST");
-		connection.setRequestProperty("User-Agent", USER_AGENT);
-		connection.setDoOutput(true); // We need to send a request body
-
-		DataOutputStream dataOutputStream = new DataOutputStream(connection.getOutputStream());
-		dataOutputStream.writeBytes(parameters);
-		dataOutputStream.flush();
-		dataOutputStream.close();
+		return body(HTTPClient.getShared().post(url, ContentType.APPLICATION_FORM_URLENCODED, parameters.getBytes(StandardCharsets.UTF_8)));
+	}
 
-		return connection.getInputStream();
+	// Same failure as HttpURLConnection.getInputStream for error responses
+	private static InputStream body(HTTPResponse response) throws IOException {
+		if (response.getStatus() >= 400) {
+			throw new IOException("Server returned HTTP response code: " + response.getStatus() + " for URL: " + response.getUrl());
+		}
+		return response.getBodyAsStream();
 	}
 }
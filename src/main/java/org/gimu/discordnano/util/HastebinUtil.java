@@ -15,16 +15,19 @@
  */
 package org.gimu.discordnano.util;
 
-import com.mashape.unirest.http.Unirest;
+import org.apache.http.entity.ContentType;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
 
 public class HastebinUtil {
 
     public static String post(String input) {
         String response = "ERROR";
         try {
-            response = Unirest.post("http://hastebin.com/documents")
-                    .body(input)
-                    .asJson().getBody().getObject().getString("key");
+            response = new JSONObject(HTTPClient.getShared()
+                    .post("http://hastebin.com/documents", ContentType.TEXT_PLAIN, input.getBytes(StandardCharsets.UTF_8))
+                    .getBodyAsString()).getString("key");
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -15,42 +15,151 @@
  */
 package org.gimu.discordnano.util;
 
+import org.apache.http.client.methods.HttpGet;
+import org.gimu.discordnano.DiscordNano;
 import org.json.JSONException;
 import org.json.JSONObject;
-import java.io.*;
-import java.net.URL;
-import java.net.URLConnection;
-import java.nio.charset.StandardCharsets;
+import org.json.JSONTokener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
 
 public class JSONUtil {
 
+    private static final String USER_AGENT = "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/537.11 (KHTML, like Gecko) Chrome/23.0.1271.95 Safari/537.11";
+
     public static JSONObject readJsonFromUrl(String url) throws JSONException {
-        URLConnection uCon;
+        return readJsonFromUrl(url, getMaxBytes());
+    }
+
+    public static JSONObject readJsonFromUrl(String url, long maxBytes) throws JSONException {
         try {
-            uCon = new URL(url).openConnection();
-            uCon.setRequestProperty("User-Agent", "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/537.11 (KHTML, like Gecko) Chrome/23.0.1271.95 Safari/537.11");
-            uCon.connect();
+            HTTPResponse response = HTTPCache.getShared().get(url, Collections.singletonMap("User-Agent", USER_AGENT), maxBytes);
+            if (response.getStatus() >= 400) {
+                throw new IOException("Server returned HTTP response code: " + response.getStatus() + " for URL: " + url);
+            }
+            return readJson(response.getBodyAsStream(), maxBytes);
         } catch (IOException e) {
             e.printStackTrace();
             return null;
         }
+    }
 
-        try (InputStream is = uCon.getInputStream()) {
-            BufferedReader rd = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
-            String jsonText = readAll(rd);
-            return new JSONObject(jsonText);
+    // Only the given top level fields, the download stops as soon as all of them were read.
+    // Bypasses the response cache since the body is never read completely.
+    public static Map<String, Object> readFieldsFromUrl(String url, String... keys) throws JSONException {
+        try {
+            return HTTPClient.getShared().stream(request(url), in -> readFields(in, getMaxBytes(), keys));
         } catch (IOException e) {
             e.printStackTrace();
             return null;
         }
     }
 
-    private static String readAll(Reader rd) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int cp;
-        while ((cp = rd.read()) != -1) {
-            sb.append((char) cp);
+    // Parses straight from the stream, maxBytes <= 0 means no limit. The stream is left open.
+    public static JSONObject readJson(InputStream in, long maxBytes) throws IOException, JSONException {
+        try (PooledReader reader = new PooledReader(in, maxBytes)) {
+            return new JSONObject(new JSONTokener(reader));
         }
-        return sb.toString();
+    }
+
+    public static Map<String, Object> readFields(InputStream in, long maxBytes, String... keys) throws IOException, JSONException {
+        Set<String> wanted = new HashSet<String>(Arrays.asList(keys));
+        Map<String, Object> fields = new HashMap<String, Object>();
+        try (PooledReader reader = new PooledReader(in, maxBytes)) {
+            JSONTokener x = new JSONTokener(reader);
+            if (x.nextClean() != '{') {
+                throw x.syntaxError("A JSONObject text must begin with '{'");
+            }
+            while (fields.size() < wanted.size()) {
+                char c = x.nextClean();
+                if (c == '}' || c == 0) {
+                    break;
+                }
+
+                String key;
+                if (c == '"' || c == '\'') {
+                    key = x.nextString(c);
+                } else {
+                    x.back();
+                    key = x.nextValue().toString();
+                }
+                if (x.nextClean() != ':') {
+                    throw x.syntaxError("Expected a ':' after a key");
+                }
+
+                if (wanted.contains(key)) {
+                    fields.put(key, x.nextValue());
+                } else {
+                    skipValue(x);
+                }
+
+                c = x.nextClean();
+                if (c == '}') {
+                    break;
+                }
+                if (c != ',' && c != ';') {
+                    throw x.syntaxError("Expected a ',' or '}'");
+                }
+            }
+        }
+        return fields;
+    }
+
+    // Skips a value without building it
+    private static void skipValue(JSONTokener x) throws JSONException {
+        int depth = 0;
+        do {
+            char c = x.nextClean();
+            switch (c) {
+                case 0:
+                    throw x.syntaxError("Unterminated value");
+                case '"':
+                case '\'':
+                    skipString(x, c);
+                    break;
+                case '{':
+                case '[':
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    break;
+                default:
+                    if (depth == 0) {
+                        // Unquoted value, read up to the next delimiter
+                        while (c >= ' ' && ",:]}/\\\"[{;=#".indexOf(c) < 0) {
+                            c = x.next();
+                        }
+                        x.back();
+                    }
+            }
+        } while (depth > 0);
+    }
+
+    private static void skipString(JSONTokener x, char quote) throws JSONException {
+        while (true) {
+            char c = x.next();
+            if (c == 0 || c == '\n' || c == '\r') {
+                throw x.syntaxError("Unterminated string");
+            }
+            if (c == '\\') {
+                x.next();
+            } else if (c == quote) {
+                return;
+            }
+        }
+    }
+
+    private static HttpGet request(String url) {
+        HttpGet request = new HttpGet(url);
+        request.setHeader("User-Agent", USER_AGENT);
+        return request;
+    }
+
+    private static long getMaxBytes() {
+        return DiscordNano.config.optLong("json_max_bytes", 16 * 1024 * 1024);
     }
 }
@@ -0,0 +1,256 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable compiled form of a {@link MathUtil} expression. Sub trees without
+ * variables are folded into constants when compiling, so evaluating walks only
+ * the parts that depend on the bound variables.
+ */
+public final class MathExpression {
+
+    private final Node root;
+    private final String[] variables;
+
+    MathExpression(Node root, String[] variables) {
+        this.root = root;
+        this.variables = variables;
+    }
+
+    // Values in the order the variables were given to MathUtil.compile
+    public double evaluate(double... values) {
+        if (values.length != variables.length) {
+            throw new IllegalArgumentException("Expected " + variables.length + " values, got " + values.length);
+        }
+        return root.evaluate(values);
+    }
+
+    public String[] getVariables() {
+        return variables.clone();
+    }
+
+    public boolean isConstant() {
+        return root instanceof Constant;
+    }
+
+    enum Function {
+        SQRT, SIN, COS, TAN, ASIN, ACOS, ATAN, LOG, LN, SINH, COSH, TANH;
+
+        private static final Function[] all = values();
+        private static final String[] names = new String[all.length];
+        private static final Map<String, Function> byName = new HashMap<String, Function>();
+
+        static {
+            for (Function function : all) {
+                names[function.ordinal()] = function.name().toLowerCase();
+                byName.put(names[function.ordinal()], function);
+            }
+        }
+
+        // A switch keeps the Math intrinsics inlinable, unlike one subclass per constant
+        double apply(double x) {
+            switch (this) {
+                case SQRT:
+                    return Math.sqrt(x);
+                case SIN:
+                    return Math.sin(x);
+                case COS:
+                    return Math.cos(x);
+                case TAN:
+                    return Math.tan(x);
+                case ASIN:
+                    return Math.asin(x);
+                case ACOS:
+                    return Math.acos(x);
+                case ATAN:
+                    return Math.atan(x);
+                case LOG:
+                    return Math.log10(x);
+                case LN:
+                    return Math.log(x);
+                case SINH:
+                    return Math.sinh(x);
+                case COSH:
+                    return Math.cosh(x);
+                default:
+                    return Math.tanh(x);
+            }
+        }
+
+        static Function forName(String name) {
+            return byName.get(name);
+        }
+
+        // Looks up the name between start and end without extracting it
+        static Function find(String text, int start, int end) {
+            int length = end - start;
+            search:
+            for (int i = 0; i < all.length; i++) {
+                String name = names[i];
+                if (name.length() != length) continue;
+                for (int j = 0; j < length; j++) {
+                    if (name.charAt(j) != text.charAt(start + j)) continue search;
+                }
+                return all[i];
+            }
+            return null;
+        }
+
+        static Function get(int ordinal) {
+            return all[ordinal];
+        }
+    }
+
+    enum Operator {
+        ADD, SUBTRACT, MULTIPLY, DIVIDE, POWER;
+
+        double apply(double x, double y) {
+            switch (this) {
+                case ADD:
+                    return x + y;
+                case SUBTRACT:
+                    return x - y;
+                case MULTIPLY:
+                    return x * y;
+                case DIVIDE:
+                    return x / y;
+                default:
+                    return Math.pow(x, y);
+            }
+        }
+    }
+
+    static abstract class Node {
+        abstract double evaluate(double[] values);
+    }
+
+    static Node constant(double value) {
+        return new Constant(value);
+    }
+
+    static Node variable(int index) {
+        return new Variable(index);
+    }
+
+    static Node negate(Node operand) {
+        if (operand instanceof Constant) {
+            return new Constant(-((Constant) operand).value);
+        }
+        return new Negate(operand);
+    }
+
+    static Node call(Function function, Node argument) {
+        if (argument instanceof Constant) {
+            return new Constant(function.apply(((Constant) argument).value));
+        }
+        return new Call(function, argument);
+    }
+
+    static Node binary(Operator operator, Node left, Node right) {
+        if (left instanceof Constant && right instanceof Constant) {
+            return new Constant(operator.apply(((Constant) left).value, ((Constant) right).value));
+        }
+        switch (operator) {
+            case ADD:
+                return new Node() {
+                    double evaluate(double[] values) {
+                        return left.evaluate(values) + right.evaluate(values);
+                    }
+                };
+            case SUBTRACT:
+                return new Node() {
+                    double evaluate(double[] values) {
+                        return left.evaluate(values) - right.evaluate(values);
+                    }
+                };
+            case MULTIPLY:
+                return new Node() {
+                    double evaluate(double[] values) {
+                        return left.evaluate(values) * right.evaluate(values);
+                    }
+                };
+            case DIVIDE:
+                return new Node() {
+                    double evaluate(double[] values) {
+                        return left.evaluate(values) / right.evaluate(values);
+                    }
+                };
+            default:
+                return new Node() {
+                    double evaluate(double[] values) {
+                        return Math.pow(left.evaluate(values), right.evaluate(values));
+                    }
+                };
+        }
+    }
+
+    private static final class Constant extends Node {
+
+        final double value;
+
+        Constant(double value) {
+            this.value = value;
+        }
+
+        double evaluate(double[] values) {
+            return value;
+        }
+    }
+
+    private static final class Variable extends Node {
+
+        final int index;
+
+        Variable(int index) {
+            this.index = index;
+        }
+
+        double evaluate(double[] values) {
+            return values[index];
+        }
+    }
+
+    private static final class Negate extends Node {
+
+        final Node operand;
+
+        Negate(Node operand) {
+            this.operand = operand;
+        }
+
+        double evaluate(double[] values) {
+            return -operand.evaluate(values);
+        }
+    }
+
+    private static final class Call extends Node {
+
+        final Function function;
+        final Node argument;
+
+        Call(Function function, Node argument) {
+            this.function = function;
+            this.argument = argument;
+        }
+
+        double evaluate(double[] values) {
+            return function.apply(argument.evaluate(values));
+        }
+    }
+}
@@ -16,12 +16,77 @@
 
 package org.gimu.discordnano.util;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.gimu.discordnano.util.MathExpression.Function;
+import org.gimu.discordnano.util.MathExpression.Node;
+import org.gimu.discordnano.util.MathExpression.Operator;
+
+/**
+ * Evaluates arithmetic expressions with an operator precedence parser. The parser
+ * works on explicit stacks instead of recursion, so input length, nesting depth
+ * and the number of operations are bounded and checked. Going over a limit
+ * throws an {@link ExpressionLimitException}, callers reply with its message.
+ *
+ * Grammar:
+ * expression = term | expression `+` term | expression `-` term
+ * term = factor | term `*` factor | term `/` factor
+ * factor = `+` factor | `-` factor | `(` expression `)`
+ *        | number | functionName factor | factor `^` factor
+ */
 public class MathUtil {
 
+    public static final int MAX_LENGTH = 2000;
+    public static final int MAX_DEPTH = 100;
+    public static final int MAX_OPERATIONS = 500;
+
+    private static final int CACHE_SIZE = 1024;
+
+    // Operator stack entries, functions keep their ordinal or name range next to them
+    private static final int PAREN = 0;
+    private static final int ADD = 1;
+    private static final int SUBTRACT = 2;
+    private static final int MULTIPLY = 3;
+    private static final int DIVIDE = 4;
+    private static final int POWER = 5;
+    private static final int NEGATE = 6;
+    private static final int FUNCTION = 7;
+    private static final int UNKNOWN_FUNCTION = 8;
+
+    // `^` is right associative and binds tighter than unary minus and functions
+    private static final int[] PRECEDENCE = {0, 1, 1, 2, 2, 4, 3, 3, 3};
+
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private static final ThreadLocal<Stacks> stacks = ThreadLocal.withInitial(Stacks::new);
+
+    // Compiled expressions by normalized expression and variable names
+    private static final Cache<String, MathExpression> compiled = Caffeine.newBuilder()
+            .maximumSize(CACHE_SIZE)
+            .build();
+
     private final String exp;
     int pos = -1;
     int ch;
 
+    // Either evaluating into values or compiling into nodes
+    private double[] values;
+    private Node[] nodes;
+    private int[] ops;
+    private int[] names;
+    private int valueTop;
+    private int opTop;
+    private int parens;
+    private int operations;
+    private String[] variables = new String[0];
+
     public MathUtil(String exp)
     {
         this.exp = exp;
@@ -42,97 +107,273 @@ public class MathUtil {
     }
 
     public double eval() {
-        nextChar();
-        double x = parseExpression();
-        if (pos < exp.length()) throw new RuntimeException("Unexpected: " + (char) ch);
-        return x;
+        Stacks stacks = MathUtil.stacks.get();
+        values = stacks.values;
+        ops = stacks.ops;
+        names = stacks.names;
+        parse();
+        return values[0];
     }
 
-    double parseExpression() {
-        // Grammar:
-        // expression = term | expression `+` term | expression `-` term
-        // term = factor | term `*` factor | term `/` factor
-        // factor = `+` factor | `-` factor | `(` expression `)`
-        //        | number | functionName factor | factor `^` factor
-        double x = parseTerm();
-        while (true) {
-            if (eat('+')) x += parseTerm(); // Addition
-            else if (eat('-')) x -= parseTerm(); // Subtraction
-            else return x;
+    // Same grammar as eval, but builds a tree that can be evaluated repeatedly.
+    // Variables are lower case names that may be used wherever a number may.
+    public static MathExpression compile(String expression, String... variables) {
+        String key = normalize(expression, variables);
+        MathExpression expr = key != null ? compiled.getIfPresent(key) : null;
+        if (expr == null) {
+            for (String variable : variables) {
+                if (!variable.matches("[a-z]+") || Function.forName(variable) != null) {
+                    throw new IllegalArgumentException("Invalid variable name: " + variable);
+                }
+            }
+            MathUtil parser = new MathUtil(expression);
+            parser.variables = variables.clone();
+            parser.nodes = new Node[MAX_DEPTH + 2];
+            parser.ops = new int[MAX_DEPTH];
+            parser.names = new int[MAX_DEPTH];
+            parser.parse();
+            expr = new MathExpression(parser.nodes[0], parser.variables);
+            if (key != null) compiled.put(key, expr);
         }
+        return expr;
     }
 
-    double parseTerm() {
-        double x = parseFactor();
+    public static double evaluate(String expression) {
+        return compile(expression).evaluate();
+    }
+
+    private void parse() {
+        if (exp.length() > MAX_LENGTH) {
+            throw new ExpressionLimitException("Expression is longer than " + MAX_LENGTH + " characters");
+        }
+        valueTop = 0;
+        opTop = 0;
+        parens = 0;
+        operations = 0;
+        nextChar();
+
+        boolean operand = true;
         while (true) {
-            if (eat('*')) x *= parseFactor(); // Multiplication
-            else if (eat('/')) x /= parseFactor(); // Division
-            else return x;
+            while (ch == ' ') nextChar();
+            if (operand) {
+                int startPos = this.pos;
+                if (ch == '+') { // Unary plus
+                    nextChar();
+                } else if (ch == '-') { // Unary minus
+                    nextChar();
+                    pushOperator(NEGATE, 0);
+                } else if (ch == '(') { // parentheses
+                    nextChar();
+                    pushOperator(PAREN, 0);
+                    parens++;
+                } else if ((ch >= '0' && ch <= '9') || ch == '.') { // numbers
+                    pushNumber(parseNumber());
+                    operand = false;
+                } else if (ch >= 'a' && ch <= 'z') { // functions, variables when compiling
+                    while (ch >= 'a' && ch <= 'z') nextChar();
+                    int variable = indexOfVariable(startPos, this.pos);
+                    if (variable >= 0) {
+                        pushNode(MathExpression.variable(variable));
+                        operand = false;
+                    } else {
+                        Function function = Function.find(exp, startPos, this.pos);
+                        // Unknown names fail once their argument was read, like the recursive parser did
+                        if (function != null) pushOperator(FUNCTION, function.ordinal());
+                        else pushOperator(UNKNOWN_FUNCTION, startPos << 16 | this.pos);
+                    }
+                } else {
+                    throw new RuntimeException("Unexpected: " + (char) ch);
+                }
+            } else {
+                int op;
+                if (ch == '+') op = ADD;
+                else if (ch == '-') op = SUBTRACT;
+                else if (ch == '*') op = MULTIPLY;
+                else if (ch == '/') op = DIVIDE;
+                else if (ch == '^') op = POWER;
+                else if (ch == ')' && parens > 0) {
+                    nextChar();
+                    while (ops[opTop - 1] != PAREN) reduce();
+                    parens--;
+                    opTop--;
+                    continue;
+                } else {
+                    // End of the expression, unclosed parentheses are tolerated
+                    while (opTop > 0) reduce();
+                    break;
+                }
+                nextChar();
+                int precedence = PRECEDENCE[op];
+                while (opTop > 0) {
+                    int top = ops[opTop - 1];
+                    if (top == PAREN || PRECEDENCE[top] < precedence || (PRECEDENCE[top] == precedence && op == POWER)) break;
+                    reduce();
+                }
+                pushOperator(op, 0);
+                operand = true;
+            }
         }
+
+        if (pos < exp.length()) throw new RuntimeException("Unexpected: " + (char) ch);
     }
 
-    double parseFactor() {
-        if (eat('+')) return parseFactor(); // Unary plus
-        if (eat('-')) return -parseFactor(); // Unary minus
+    private void pushOperator(int op, int name) {
+        if (opTop == MAX_DEPTH) {
+            throw new ExpressionLimitException("Expression is nested deeper than " + MAX_DEPTH + " levels");
+        }
+        names[opTop] = name;
+        ops[opTop++] = op;
+    }
 
-        double x;
-        int startPos = this.pos;
-        if (eat('(')) { // parentheses
-            x = parseExpression();
-            eat(')');
-        } else if ((ch >= '0' && ch <= '9') || ch == '.') { // numbers
-            while ((ch >= '0' && ch <= '9') || ch == '.') nextChar();
-            x = Double.parseDouble(exp.substring(startPos, this.pos));
-        } else if (ch >= 'a' && ch <= 'z') { // functions
-            while (ch >= 'a' && ch <= 'z') nextChar();
-            String func = exp.substring(startPos, this.pos);
-            x = parseFactor();
-            switch (func) {
-                case "sqrt":
-                    x = Math.sqrt(x);
-                    break;
-                case "sin":
-                    x = Math.sin(x);
-                    break;
-                case "cos":
-                    x = Math.cos(x);
-                    break;
-                case "tan":
-                    x = Math.tan(x);
-                    break;
-                case "asin":
-                    x = Math.asin(x);
-                    break;
-                case "acos":
-                    x = Math.acos(x);
-                    break;
-                case "atan":
-                    x = Math.atan(x);
-                    break;
-                case "log":
-                    x = Math.log10(x);
-                    break;
-                case "ln":
-                    x = Math.log(x);
-                    break;
-                case "sinh":
-                    x = Math.sinh(x);
-                    break;
-                case "cosh":
-                    x = Math.cosh(x);
+    private void pushNumber(double x) {
+        if (nodes != null) pushNode(MathExpression.constant(x));
+        else values[valueTop++] = x;
+    }
+
+    private void pushNode(Node node) {
+        nodes[valueTop++] = node;
+    }
+
+    private void reduce() {
+        int op = ops[--opTop];
+        if (op == PAREN) return;
+        if (++operations > MAX_OPERATIONS) {
+            throw new ExpressionLimitException("Expression has more than " + MAX_OPERATIONS + " operations");
+        }
+        int name = names[opTop];
+        if (op == UNKNOWN_FUNCTION) {
+            throw new RuntimeException("Unknown function: " + exp.substring(name >>> 16, name & 0xffff));
+        }
+
+        if (nodes != null) {
+            Node x = nodes[--valueTop];
+            switch (op) {
+                case NEGATE:
+                    nodes[valueTop++] = MathExpression.negate(x);
                     break;
-                case "tanh":
-                    x = Math.tanh(x);
+                case FUNCTION:
+                    nodes[valueTop++] = MathExpression.call(Function.get(name), x);
                     break;
                 default:
-                    throw new RuntimeException("Unknown function: " + func);
+                    Node left = nodes[valueTop - 1];
+                    nodes[valueTop - 1] = MathExpression.binary(toOperator(op), left, x);
+            }
+            return;
+        }
+
+        double x = values[--valueTop];
+        switch (op) {
+            case NEGATE:
+                values[valueTop++] = -x;
+                break;
+            case FUNCTION:
+                values[valueTop++] = Function.get(name).apply(x);
+                break;
+            case ADD:
+                values[valueTop - 1] += x; // Addition
+                break;
+            case SUBTRACT:
+                values[valueTop - 1] -= x; // Subtraction
+                break;
+            case MULTIPLY:
+                values[valueTop - 1] *= x; // Multiplication
+                break;
+            case DIVIDE:
+                values[valueTop - 1] /= x; // Division
+                break;
+            default:
+                values[valueTop - 1] = Math.pow(values[valueTop - 1], x); // Exponentiation
+        }
+    }
+
+    // Reads the number in place, exact whenever the digits fit a double's mantissa
+    private double parseNumber() {
+        int startPos = this.pos;
+        long mantissa = 0;
+        int digits = 0;
+        int fraction = -1;
+        boolean simple = true;
+        while ((ch >= '0' && ch <= '9') || ch == '.') {
+            if (ch == '.') {
+                if (fraction >= 0) simple = false;
+                fraction = 0;
+            } else {
+                mantissa = mantissa * 10 + (ch - '0');
+                digits++;
+                if (fraction >= 0) fraction++;
+            }
+            nextChar();
+        }
+        if (!simple || digits == 0 || digits > 15 || fraction >= POWERS_OF_TEN.length) {
+            // Also produces the same NumberFormatException for input like "1.2.3"
+            return Double.parseDouble(exp.substring(startPos, this.pos));
+        }
+        return fraction > 0 ? mantissa / POWERS_OF_TEN[fraction] : mantissa;
+    }
+
+    private int indexOfVariable(int start, int end) {
+        for (int i = 0; i < variables.length; i++) {
+            String variable = variables[i];
+            if (variable.length() == end - start && exp.regionMatches(start, variable, 0, variable.length())) return i;
+        }
+        return -1;
+    }
+
+    private static Operator toOperator(int op) {
+        switch (op) {
+            case ADD:
+                return Operator.ADD;
+            case SUBTRACT:
+                return Operator.SUBTRACT;
+            case MULTIPLY:
+                return Operator.MULTIPLY;
+            case DIVIDE:
+                return Operator.DIVIDE;
+            default:
+                return Operator.POWER;
+        }
+    }
+
+    // Runs of spaces and surrounding spaces don't change the meaning of an expression.
+    // Null for expressions containing the separator, those are never cached.
+    private static String normalize(String expression, String[] variables) {
+        if (expression.indexOf('\0') >= 0) {
+            return null;
+        }
+        if (variables.length == 0 && isNormalized(expression)) {
+            return expression;
+        }
+        StringBuilder key = new StringBuilder(expression.length() + 8 * variables.length);
+        boolean space = false;
+        for (int i = 0; i < expression.length(); i++) {
+            char c = expression.charAt(i);
+            if (c == ' ') {
+                space = true;
+                continue;
             }
-        } else {
-            throw new RuntimeException("Unexpected: " + (char) ch);
+            if (space && key.length() > 0) key.append(' ');
+            space = false;
+            key.append(c);
+        }
+        for (String variable : variables) {
+            key.append('\0').append(variable);
         }
+        return key.toString();
+    }
+
+    private static boolean isNormalized(String expression) {
+        int last = expression.length() - 1;
+        if (last >= 0 && (expression.charAt(0) == ' ' || expression.charAt(last) == ' ')) return false;
+        for (int i = 1; i < last; i++) {
+            if (expression.charAt(i) == ' ' && expression.charAt(i + 1) == ' ') return false;
+        }
+        return true;
+    }
 
-        if (eat('^')) x = Math.pow(x, parseFactor()); // Exponentiation
+    private static final class Stacks {
 
-        return x;
+        final double[] values = new double[MAX_DEPTH + 2];
+        final int[] ops = new int[MAX_DEPTH];
+        final int[] names = new int[MAX_DEPTH];
     }
 }
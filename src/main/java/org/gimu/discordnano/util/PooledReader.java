@@ -0,0 +1,178 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * UTF-8 reader over a byte stream that decodes through per-thread buffers, so
+ * reading a response allocates no buffers of its own. Supports mark/reset and
+ * an upper bound on the number of bytes read. Closing the reader leaves the
+ * stream open, its owner decides whether to drain or drop it.
+ */
+class PooledReader extends Reader {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+
+    private final InputStream in;
+    private final long maxBytes;
+    private final Buffers pooled;
+    private final ByteBuffer bytes;
+    private final CharsetDecoder decoder;
+    private char[] chars;
+    private int position;
+    private int limit;
+    private int mark = -1;
+    private long bytesRead;
+    private boolean eof;
+
+    PooledReader(InputStream in, long maxBytes) {
+        this.in = in;
+        this.maxBytes = maxBytes;
+
+        Buffers local = buffers.get();
+        if (local.inUse) {
+            local = new Buffers(); // Nested use on this thread
+        }
+        local.inUse = true;
+        pooled = local;
+        bytes = local.bytes;
+        bytes.clear().flip();
+        chars = local.chars;
+        decoder = local.decoder.reset();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position >= limit && !fill()) {
+            return -1;
+        }
+        return chars[position++];
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (position >= limit && !fill()) {
+            return -1;
+        }
+        int count = Math.min(length, limit - position);
+        System.arraycopy(chars, position, buffer, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public void mark(int readAheadLimit) {
+        mark = position;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        if (mark < 0) {
+            throw new IOException("Stream not marked");
+        }
+        position = mark;
+    }
+
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    private boolean fill() throws IOException {
+        // Keep marked characters, grow only when a mark spans the whole buffer
+        int keep = mark >= 0 ? mark : position;
+        int kept = limit - keep;
+        if (kept > 0 && keep > 0) {
+            System.arraycopy(chars, keep, chars, 0, kept);
+        } else if (kept > 0 && kept == chars.length) {
+            chars = Arrays.copyOf(chars, chars.length * 2);
+        }
+        if (mark >= 0) {
+            mark = 0;
+        }
+        position = kept;
+        limit = kept;
+
+        while (limit == kept) {
+            if (!bytes.hasRemaining() && eof) {
+                return false;
+            }
+            if (!eof) {
+                bytes.compact();
+                int read = in.read(bytes.array(), bytes.position(), bytes.remaining());
+                if (read < 0) {
+                    eof = true;
+                } else {
+                    bytesRead += read;
+                    if (maxBytes > 0 && bytesRead > maxBytes) {
+                        throw new IOException("Response exceeds " + maxBytes + " bytes");
+                    }
+                    bytes.position(bytes.position() + read);
+                }
+                bytes.flip();
+            }
+
+            CharBuffer out = CharBuffer.wrap(chars, limit, chars.length - limit);
+            CoderResult result = decoder.decode(bytes, out, eof);
+            if (eof && !bytes.hasRemaining()) {
+                decoder.flush(out);
+            }
+            if (result.isError()) {
+                result.throwException();
+            }
+            limit = out.position();
+            if (limit == kept && eof && !bytes.hasRemaining()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Only hands the buffers back
+    @Override
+    public void close() {
+        pooled.inUse = false;
+    }
+
+    private static class Buffers {
+
+        private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+        private final char[] chars = new char[BUFFER_SIZE];
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private boolean inUse;
+    }
+}
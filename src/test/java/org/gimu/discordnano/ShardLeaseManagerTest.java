@@ -0,0 +1,185 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano;
+
+import org.gimu.discordnano.lib.NanoDatabase;
+import org.gimu.discordnano.lib.NanoDatabaseTest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ShardLeaseManagerTest {
+
+    private static final int SHARDS = 4;
+    private static final long LEASE_TIME = 600;
+    private static final long HEARTBEAT_INTERVAL = 100;
+    private static final long LEASE_MARGIN = 200;
+
+    private final Node a = new Node("a", 2);
+    private final Node b = new Node("b", SHARDS);
+
+    @Before
+    public void setUp() throws SQLException {
+        NanoDatabaseTest.openEmbedded("leases", 2);
+        a.leases.createRows();
+    }
+
+    @After
+    public void tearDown() {
+        NanoDatabase.close();
+    }
+
+    @Test
+    public void claimsFreeShardsUpToTheLimit() throws SQLException {
+        a.leases.heartbeat();
+        b.leases.heartbeat();
+
+        assertEquals(set(0, 1), a.running);
+        assertEquals(set(2, 3), b.running);
+        assertEquals("a", owner(0));
+        assertEquals("b", owner(3));
+        assertEquals(2, a.leases.getOwnedCount());
+    }
+
+    @Test
+    public void renewsOwnedLeases() throws Exception {
+        a.leases.heartbeat();
+        long first = expiresAt(0);
+        Thread.sleep(20);
+        a.leases.heartbeat();
+
+        assertTrue(expiresAt(0) > first);
+        assertEquals(set(0, 1), a.running);
+        assertEquals(0, a.stops);
+    }
+
+    @Test
+    public void stopsShardsBeforeTheirLeaseExpires() throws Exception {
+        a.leases.heartbeat();
+        a.leases.expireLeases();
+        assertEquals(set(0, 1), a.running);
+
+        // No renewal, e.g. the database hangs
+        Thread.sleep(LEASE_TIME - LEASE_MARGIN + 50);
+        a.leases.expireLeases();
+
+        assertTrue(a.running.isEmpty());
+        assertEquals(0, a.leases.getOwnedCount());
+        assertTrue("stopped with lease time left", expiresAt(0) > System.currentTimeMillis());
+    }
+
+    @Test
+    public void takesOverExpiredLeases() throws Exception {
+        a.leases.heartbeat();
+        b.leases.heartbeat();
+        assertEquals(set(2, 3), b.running);
+
+        Thread.sleep(LEASE_TIME + 50);
+        a.leases.expireLeases();
+        b.leases.heartbeat();
+
+        assertTrue(a.running.isEmpty());
+        assertEquals(set(0, 1, 2, 3), b.running);
+        assertEquals("b", owner(0));
+
+        // The old owner notices on its next heartbeat and claims nothing back
+        a.leases.heartbeat();
+        assertTrue(a.running.isEmpty());
+    }
+
+    @Test
+    public void stopsShardsTakenOverByAnotherNode() throws SQLException {
+        a.leases.heartbeat();
+        try (Connection conn = NanoDatabase.getConnection();
+             PreparedStatement ps = conn.prepareStatement("UPDATE ShardLeases SET owner = 'b' WHERE shard_id = 1")) {
+            ps.executeUpdate();
+        }
+        a.leases.heartbeat();
+
+        assertEquals(1, a.stops);
+        assertEquals(set(0, 2), a.running); // Back at its limit with the next free shard
+        assertEquals("b", owner(1));
+    }
+
+    @Test
+    public void releasesLeasesOnShutdown() throws SQLException {
+        a.leases.heartbeat();
+        a.leases.shutdown();
+        b.leases.heartbeat();
+
+        assertEquals(set(0, 1, 2, 3), b.running);
+    }
+
+    @Test
+    public void spacesIdentifiesAcrossNodes() {
+        assertTrue(a.leases.tryIdentify());
+        assertFalse(b.leases.tryIdentify());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAMarginThatStopsRenewedShards() {
+        new ShardLeaseManager(SHARDS, "c", LEASE_TIME, HEARTBEAT_INTERVAL, LEASE_TIME - HEARTBEAT_INTERVAL, 5000, SHARDS, id -> {}, id -> {});
+    }
+
+    private static Set<Integer> set(Integer... shardIds) {
+        return new HashSet<Integer>(Arrays.asList(shardIds));
+    }
+
+    private static String owner(int shardId) throws SQLException {
+        return (String) column("owner", shardId);
+    }
+
+    private static long expiresAt(int shardId) throws SQLException {
+        return ((Number) column("expires_at", shardId)).longValue();
+    }
+
+    private static Object column(String column, int shardId) throws SQLException {
+        try (Connection conn = NanoDatabase.getConnection();
+             PreparedStatement ps = conn.prepareStatement("SELECT " + column + " FROM ShardLeases WHERE shard_id = ?")) {
+            ps.setInt(1, shardId);
+            try (ResultSet rs = ps.executeQuery()) {
+                assertTrue(rs.next());
+                return rs.getObject(1);
+            }
+        }
+    }
+
+    // A process of the cluster, its shards only record whether they run
+    private static final class Node {
+
+        final Set<Integer> running = new HashSet<Integer>();
+        final ShardLeaseManager leases;
+        int stops;
+
+        Node(String nodeID, int maxShards) {
+            leases = new ShardLeaseManager(SHARDS, nodeID, LEASE_TIME, HEARTBEAT_INTERVAL, LEASE_MARGIN, 5000, maxShards,
+                    running::add, shardId -> {
+                        running.remove(shardId);
+                        stops++;
+                    });
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.commands;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.gimu.discordnano.commands.CommandThrottle.Result.*;
+import static org.junit.Assert.*;
+
+public class CommandThrottleTest {
+
+    private static final String USER = "81384788765712384";
+    private static final String GUILD = "81384788765712385";
+
+    @Test
+    public void allowsTheBurst() {
+        CommandThrottle throttle = new CommandThrottle(3, 60000, 0, 0);
+        assertEquals(ALLOWED, throttle.acquireUser(USER));
+        assertEquals(ALLOWED, throttle.acquireUser(USER));
+        assertEquals(ALLOWED, throttle.acquireUser(USER));
+        assertEquals(REJECTED, throttle.acquireUser(USER));
+        assertEquals(ALLOWED, throttle.acquireUser(USER + 1));
+    }
+
+    @Test
+    public void refillsOneCommandPerInterval() throws InterruptedException {
+        CommandThrottle throttle = new CommandThrottle(3, 200, 0, 0);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(ALLOWED, throttle.acquireUser(USER));
+        }
+        assertEquals(REJECTED, throttle.acquireUser(USER));
+
+        // One interval later there is room for one command, not a new burst
+        Thread.sleep(250);
+        assertEquals(ALLOWED, throttle.acquireUser(USER));
+        assertNotEquals(ALLOWED, throttle.acquireUser(USER));
+    }
+
+    @Test
+    public void reportsOnlyTheFirstRejection() throws InterruptedException {
+        CommandThrottle throttle = new CommandThrottle(0, 0, 1, 200);
+        assertEquals(ALLOWED, throttle.acquireGuild(GUILD));
+        assertEquals(REJECTED, throttle.acquireGuild(GUILD));
+        assertEquals(REJECTED_QUIETLY, throttle.acquireGuild(GUILD));
+        assertEquals(REJECTED_QUIETLY, throttle.acquireGuild(GUILD));
+
+        // An allowed command resets the notification
+        Thread.sleep(250);
+        assertEquals(ALLOWED, throttle.acquireGuild(GUILD));
+        assertEquals(REJECTED, throttle.acquireGuild(GUILD));
+    }
+
+    @Test
+    public void checkDoesNotCharge() {
+        CommandThrottle throttle = new CommandThrottle(1, 60000, 0, 0);
+        assertEquals(ALLOWED, throttle.checkUser(USER));
+        assertEquals(ALLOWED, throttle.checkUser(USER));
+        assertEquals(ALLOWED, throttle.acquireUser(USER));
+        assertEquals(REJECTED, throttle.checkUser(USER));
+        assertEquals(REJECTED_QUIETLY, throttle.acquireUser(USER));
+    }
+
+    @Test
+    public void disabledScopesAllowEverything() {
+        CommandThrottle throttle = new CommandThrottle(0, 1000, 2, 0);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(ALLOWED, throttle.acquireUser(USER));
+            assertEquals(ALLOWED, throttle.acquireGuild(GUILD));
+        }
+        assertEquals(0, throttle.getBucketCount());
+    }
+
+    @Test
+    public void concurrentCommandsShareTheBurst() throws InterruptedException {
+        CommandThrottle throttle = new CommandThrottle(0, 0, 50, 60000);
+        AtomicInteger allowed = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int j = 0; j < 100; j++) {
+                    if (throttle.acquireGuild(GUILD) == ALLOWED) allowed.incrementAndGet();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+        assertEquals(50, allowed.get());
+    }
+}
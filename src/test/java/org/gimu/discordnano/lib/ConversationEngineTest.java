@@ -0,0 +1,146 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.lib;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class ConversationEngineTest {
+
+    private ConversationEngine engine;
+
+    @After
+    public void tearDown() {
+        if (engine != null) engine.shutdown();
+    }
+
+    @Test
+    public void answersThroughTheSession() throws Exception {
+        engine = new ConversationEngine(() -> input -> "re: " + input, 10, 60000, 2, 10, 5000, 2);
+        assertEquals("re: hello", engine.think("guild", "channel", "hello").get(5, TimeUnit.SECONDS));
+        assertEquals(1, engine.getSessionCount());
+        waitFor(() -> engine.getInFlightCount("guild") == 0);
+    }
+
+    @Test
+    public void hungCallKeepsItsSlotAfterTheTimeout() throws Exception {
+        CountDownLatch hang = new CountDownLatch(1);
+        engine = new ConversationEngine(() -> input -> {
+            if (input.equals("hang")) awaitUninterruptibly(hang);
+            return input;
+        }, 10, 60000, 2, 10, 100, 1);
+
+        assertFailsWith(TimeoutException.class, engine.think("guild", "channel", "hang"));
+        assertEquals(1, engine.getInFlightCount("guild"));
+        assertFailsWith(RejectedExecutionException.class, engine.think("guild", "other", "hello"));
+
+        hang.countDown();
+        waitFor(() -> engine.getInFlightCount("guild") == 0);
+        assertEquals("hello", engine.think("guild", "other", "hello").get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void queuedCallReleasesItsSlotOnTimeout() throws Exception {
+        CountDownLatch hang = new CountDownLatch(1);
+        engine = new ConversationEngine(() -> input -> {
+            awaitUninterruptibly(hang);
+            return input;
+        }, 10, 60000, 1, 10, 100, 1);
+
+        CompletableFuture<String> running = engine.think("first", "channel", "hang");
+        CompletableFuture<String> queued = engine.think("second", "channel", "queued");
+        assertFailsWith(TimeoutException.class, queued);
+        waitFor(() -> engine.getInFlightCount("second") == 0);
+        assertEquals(1, engine.getInFlightCount("first"));
+
+        hang.countDown();
+        assertFailsWith(TimeoutException.class, running);
+        waitFor(() -> engine.getInFlightCount("first") == 0);
+    }
+
+    @Test
+    public void neverExceedsTheGuildLimit() throws Exception {
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        engine = new ConversationEngine(() -> input -> {
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            Thread.sleep(5);
+            active.decrementAndGet();
+            return input;
+        }, 100, 60000, 8, 1000, 5000, 3);
+
+        List<CompletableFuture<String>> results = new ArrayList<CompletableFuture<String>>();
+        for (int i = 0; i < 200; i++) {
+            results.add(engine.think("guild", "channel-" + i, "hello"));
+        }
+        int answered = 0;
+        for (CompletableFuture<String> result : results) {
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                answered++;
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+        }
+        assertTrue(answered > 0);
+        assertTrue(maxActive.get() <= 3);
+        waitFor(() -> engine.getInFlightCount("guild") == 0);
+    }
+
+    private static void assertFailsWith(Class<? extends Throwable> type, CompletableFuture<String> result) throws Exception {
+        try {
+            result.get(5, TimeUnit.SECONDS);
+            fail("Expected " + type.getSimpleName());
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), type.isInstance(e.getCause()));
+        }
+    }
+
+    // Like a blocking socket read, interrupts don't end it
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out waiting", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
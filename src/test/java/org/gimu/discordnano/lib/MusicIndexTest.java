@@ -0,0 +1,142 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.lib;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MusicIndexTest {
+
+    private static MusicIndex index(String... titles) {
+        MusicIndex index = new MusicIndex();
+        for (String title : titles) {
+            index.add(title);
+        }
+        return index;
+    }
+
+    @Test
+    public void findsSubstringsIgnoringCase() {
+        MusicIndex index = index("Moonlight Sonata", "Clair de Lune", "Gymnop\u00e9die No. 1");
+        assertEquals(0, index.find("sonata"));
+        assertEquals(1, index.find("DE LUNE"));
+        assertEquals(2, index.find("p\u00e9die"));
+        assertEquals(-1, index.find("nocturne"));
+    }
+
+    @Test
+    public void findsTheFirstMatchingTitle() {
+        MusicIndex index = index("Intro", "Sonata Live", "Moonlight Sonata", "Sonata Remix");
+        assertEquals(1, index.find("sonata"));
+        assertEquals(2, index.find("moonlight sonata"));
+    }
+
+    @Test
+    public void scansForShortQueries() {
+        MusicIndex index = index("Intro", "Abc", "xyz");
+        assertEquals(0, index.find("in"));
+        assertEquals(1, index.find("b"));
+        assertEquals(2, index.find("Z"));
+        assertEquals(-1, index.find("q"));
+    }
+
+    @Test
+    public void emptyQueryFindsTheFirstTitle() {
+        assertEquals(-1, new MusicIndex().find(""));
+        assertEquals(0, index("Intro", "Outro").find(""));
+    }
+
+    @Test
+    public void verifiesTheCandidatesOfTheRarestTrigram() {
+        // Every trigram of the query is indexed, only the title containing them in order matches
+        MusicIndex index = index("the abc", "abc the", "bc th", "thea");
+        assertEquals(-1, index.find("abc thea"));
+        assertEquals(1, index.find("abc the"));
+        assertEquals(-1, index.find("the abc the"));
+    }
+
+    @Test
+    public void unknownTrigramEndsTheLookup() {
+        MusicIndex index = new MusicIndex();
+        for (int i = 0; i < 1000; i++) {
+            index.add("track " + i);
+        }
+        assertEquals(-1, index.find("track x"));
+        assertEquals(999, index.find("track 999"));
+        assertEquals(1000, index.size());
+    }
+
+    @Test
+    public void ranksVerbatimMatchesFirst() {
+        MusicIndex index = index("Moonlight Sonata Remastered", "Moonlight Sonta", "Moonlight Sonata", "Clair de Lune");
+        assertArrayEquals(new int[]{2, 0, 1}, index.search("moonlight sonata", 10, 0.3));
+    }
+
+    @Test
+    public void toleratesTypos() {
+        MusicIndex index = index("Clair de Lune", "Moonlight Sonata", "Gymnopedie No. 1");
+        assertArrayEquals(new int[]{1}, index.search("moonlite sonatta", 10, 0.3));
+        assertArrayEquals(new int[]{2}, index.search("gymnopedy", 10, 0.3));
+    }
+
+    @Test
+    public void dropsWeakMatches() {
+        MusicIndex index = index("Moonlight Sonata", "Sonatine", "Moon River");
+        assertArrayEquals(new int[]{0}, index.search("moonlight sonata", 10, 0.6));
+        assertEquals(3, index.search("moonlight sonata", 10, 0.01).length);
+    }
+
+    @Test
+    public void keepsTheBestWithinTheLimit() {
+        MusicIndex index = index("Sonata No. 2", "Sonata", "Sonata No. 14", "Sonata No. 1");
+        assertArrayEquals(new int[]{1, 0}, index.search("sonata", 2, 0.3));
+        assertArrayEquals(new int[]{1, 0, 3, 2}, index.search("sonata", 10, 0.3));
+    }
+
+    @Test
+    public void earlierTitlesWinTies() {
+        MusicIndex index = index("Intro", "Sonata", "Outro", "Sonata");
+        assertArrayEquals(new int[]{1, 3}, index.search("sonata", 10, 0.3));
+    }
+
+    @Test
+    public void emptySearches() {
+        MusicIndex index = index("Sonata");
+        assertEquals(0, index.search("", 10, 0.3).length);
+        assertEquals(0, index.search("sonata", 0, 0.3).length);
+        assertEquals(0, new MusicIndex().search("sonata", 10, 0.3).length);
+    }
+
+    @Test
+    public void splitsLargeLibraries() {
+        // Above the parallel threshold, matches spread so several chunks hold some. The other titles share no trigram with the query
+        int size = 60000;
+        String[] titles = new String[size];
+        for (int i = 0; i < size; i++) {
+            titles[i] = "track " + i;
+        }
+        titles[5] = "Moonlight Sonata";
+        titles[size / 2] = "Moonlight Sonta";
+        titles[size * 3 / 4] = "Moonlight Sonata Remastered";
+        titles[size - 10] = "moonlight sonata";
+        MusicIndex index = index(titles);
+
+        assertArrayEquals(new int[]{5, size - 10, size * 3 / 4, size / 2}, index.search("moonlight sonata", 10, 0.3));
+        assertArrayEquals(new int[]{5, size - 10}, index.search("moonlight sonata", 2, 0.3));
+        assertArrayEquals(new int[]{size - 3}, index.search("track 59997", 1, 0.3));
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.lib;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.Assert.*;
+
+public class NanoDatabaseTest {
+
+    // Opens a fresh in-memory database for each test
+    public static void openEmbedded(String name, int poolSize) {
+        NanoDatabase.open(new JSONObject()
+                .put("db_url", "jdbc:h2:mem:" + name + System.nanoTime() + ";MODE=MySQL;DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000")
+                .put("db_pool_size", poolSize)
+                .put("db_pool_min_idle", 0)
+                .put("db_connection_timeout", 250));
+    }
+
+    @Before
+    public void setUp() {
+        openEmbedded("database", 2);
+    }
+
+    @After
+    public void tearDown() {
+        NanoDatabase.close();
+    }
+
+    @Test
+    public void createsEmbeddedSchema() throws SQLException {
+        try (Connection conn = NanoDatabase.getConnection();
+             Statement st = conn.createStatement()) {
+            try (ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM NanoGuilds")) {
+                assertTrue(rs.next());
+                assertEquals(0, rs.getInt(1));
+            }
+            try (ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM MusicLibrary")) {
+                assertTrue(rs.next());
+                assertEquals(0, rs.getInt(1));
+            }
+        }
+    }
+
+    @Test
+    public void returnsConnectionsToThePool() throws SQLException {
+        long acquired = NanoDatabase.getAcquiredCount();
+        try (Connection first = NanoDatabase.getConnection();
+             Connection second = NanoDatabase.getConnection()) {
+            assertEquals(2, NanoDatabase.getActiveConnections());
+        }
+        assertEquals(0, NanoDatabase.getActiveConnections());
+        assertEquals(acquired + 2, NanoDatabase.getAcquiredCount());
+    }
+
+    @Test
+    public void timesOutOnceThePoolIsExhausted() throws SQLException {
+        long timeouts = NanoDatabase.getTimeoutCount();
+        try (Connection first = NanoDatabase.getConnection();
+             Connection second = NanoDatabase.getConnection()) {
+            try (Connection third = NanoDatabase.getConnection()) {
+                fail("Got a third connection from a pool of two");
+            } catch (SQLException expected) {
+                // Pool exhausted
+            }
+        }
+        assertEquals(timeouts + 1, NanoDatabase.getTimeoutCount());
+    }
+
+    @Test
+    public void readingTheMaximumWaitDoesNotResetIt() throws SQLException {
+        try (Connection conn = NanoDatabase.getConnection()) {
+            assertTrue(conn.isValid(1));
+        }
+        double max = NanoDatabase.getMaxWaitMillis();
+        assertTrue(max > 0);
+        assertEquals(max, NanoDatabase.getMaxWaitMillis(), 0);
+    }
+
+    @Test
+    public void reopeningReplacesThePool() throws SQLException {
+        try (Connection conn = NanoDatabase.getConnection();
+             Statement st = conn.createStatement()) {
+            st.executeUpdate("INSERT INTO MusicLibrary (title, source) VALUES('title', 'source')");
+        }
+        openEmbedded("reopened", 2);
+        try (Connection conn = NanoDatabase.getConnection();
+             Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM MusicLibrary")) {
+            assertTrue(rs.next());
+            assertEquals(0, rs.getInt(1));
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.lib;
+
+import net.dv8tion.jda.core.entities.Guild;
+import net.dv8tion.jda.core.entities.TextChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class NanoGuildLibraryTest {
+
+    private static final long GUILD = 81384788765712384L;
+    private static final long TEXT = 81384788765712385L;
+    private static final long STORED_TEXT = 81384788765712386L;
+    private static final long STORED_VOICE = 81384788765712387L;
+
+    private NanoGuildLibrary library;
+
+    @Before
+    public void setUp() {
+        NanoDatabaseTest.openEmbedded("library", 2);
+        library = new NanoGuildLibrary(60000, 100, false);
+    }
+
+    @After
+    public void tearDown() {
+        library.shutdown();
+        NanoDatabase.close();
+    }
+
+    @Test
+    public void bootstrapLoadsAndInserts() throws SQLException {
+        store(GUILD);
+        library.addAll(Arrays.asList(guild(GUILD, null), guild(GUILD + 1, null)));
+
+        assertEquals(STORED_TEXT, library.get(GUILD).getTextchannel());
+        assertEquals(STORED_VOICE, library.get(GUILD).getVoicechannel());
+        assertEquals(TEXT, library.get(GUILD + 1).getTextchannel());
+        assertArrayEquals(new String[]{Long.toString(TEXT), ""}, NanoGuildWriterTest.channels(GUILD + 1));
+    }
+
+    @Test
+    public void bootstrapKeepsGuildsAddedMeanwhile() {
+        NanoGuild joined = new NanoGuild(STORED_TEXT, 0);
+        // Joins after the missing guilds were read
+        library.addAll(Collections.singletonList(guild(GUILD, () -> library.getGuildMap().put(GUILD, joined))));
+
+        assertSame(joined, library.get(GUILD));
+    }
+
+    @Test
+    public void bootstrapReadsBackRowsInsertedMeanwhile() throws SQLException {
+        // Stored by another shard after the missing guilds were read
+        library.addAll(Collections.singletonList(guild(GUILD, () -> {
+            try {
+                store(GUILD);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        })));
+
+        assertEquals(STORED_TEXT, library.get(GUILD).getTextchannel());
+        assertEquals(STORED_VOICE, library.get(GUILD).getVoicechannel());
+        assertArrayEquals(new String[]{Long.toString(STORED_TEXT), Long.toString(STORED_VOICE)}, NanoGuildWriterTest.channels(GUILD));
+    }
+
+    private static void store(long guildID) throws SQLException {
+        try (Connection conn = NanoDatabase.getConnection();
+             PreparedStatement ps = conn.prepareStatement("INSERT INTO NanoGuilds (guild_id, textchannel, voicechannel) VALUES(?, ?, ?)")) {
+            ps.setString(1, Long.toString(guildID));
+            ps.setString(2, Long.toString(STORED_TEXT));
+            ps.setString(3, Long.toString(STORED_VOICE));
+            ps.executeUpdate();
+        }
+    }
+
+    // The hook runs once when the library asks for the text channels, between loading and inserting
+    private static Guild guild(long guildID, Runnable hook) {
+        AtomicBoolean ran = new AtomicBoolean(hook == null);
+        TextChannel channel = proxy(TextChannel.class, method -> method.equals("getId") ? Long.toString(TEXT) : null);
+        return proxy(Guild.class, method -> {
+            if (method.equals("getId")) return Long.toString(guildID);
+            if (method.equals("getTextChannels")) {
+                if (ran.compareAndSet(false, true)) hook.run();
+                return Collections.singletonList(channel);
+            }
+            return null;
+        });
+    }
+
+    private interface Answer {
+        Object answer(String method);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Answer answer) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (instance, method, args) -> {
+            switch (method.getName()) {
+                case "hashCode":
+                    return System.identityHashCode(instance);
+                case "equals":
+                    return instance == args[0];
+                case "toString":
+                    return type.getSimpleName();
+                default:
+                    return answer.answer(method.getName());
+            }
+        });
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.lib;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class NanoGuildMapTest {
+
+    private static final long GUILD = 81384788765712384L;
+
+    @Test
+    public void putGetRemove() {
+        NanoGuildMap map = new NanoGuildMap();
+        NanoGuild first = new NanoGuild(1, 2);
+        NanoGuild second = new NanoGuild(3, 4);
+
+        assertNull(map.get(GUILD));
+        assertNull(map.put(GUILD, first));
+        assertSame(first, map.get(GUILD));
+        assertSame(first, map.put(GUILD, second));
+        assertSame(second, map.get(GUILD));
+        assertEquals(1, map.size());
+
+        assertSame(second, map.remove(GUILD));
+        assertNull(map.get(GUILD));
+        assertNull(map.remove(GUILD));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void putIfAbsentKeepsThePresentGuild() {
+        NanoGuildMap map = new NanoGuildMap();
+        NanoGuild first = new NanoGuild(1, 2);
+        assertNull(map.putIfAbsent(GUILD, first));
+        assertSame(first, map.putIfAbsent(GUILD, new NanoGuild()));
+        assertSame(first, map.get(GUILD));
+
+        map.remove(GUILD);
+        NanoGuild second = new NanoGuild(3, 4);
+        assertNull(map.putIfAbsent(GUILD, second));
+        assertSame(second, map.get(GUILD));
+        assertEquals(1, map.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTheEmptyKey() {
+        new NanoGuildMap().put(0, new NanoGuild());
+    }
+
+    @Test
+    public void reusesTheSlotOfARemovedGuild() {
+        NanoGuildMap map = new NanoGuildMap();
+        int capacity = map.getCapacity();
+        for (int i = 0; i < 10000; i++) {
+            map.put(GUILD, new NanoGuild(i, 0));
+            map.remove(GUILD);
+        }
+        NanoGuild guild = new NanoGuild();
+        map.put(GUILD, guild);
+        assertSame(guild, map.get(GUILD));
+        assertEquals(1, map.size());
+        assertEquals(capacity, map.getCapacity());
+    }
+
+    @Test
+    public void probesPastRemovedGuilds() {
+        NanoGuildMap map = new NanoGuildMap();
+        for (int i = 0; i < 9; i++) {
+            map.put(GUILD + i, new NanoGuild(i, 0));
+        }
+        for (int i = 0; i < 9; i += 2) {
+            map.remove(GUILD + i);
+        }
+        for (int i = 0; i < 9; i++) {
+            NanoGuild guild = map.get(GUILD + i);
+            if (i % 2 == 0) {
+                assertNull(guild);
+            } else {
+                assertEquals(i, guild.getTextchannel());
+            }
+        }
+        assertEquals(4, map.size());
+    }
+
+    @Test
+    public void resizeDropsRemovedGuilds() {
+        NanoGuildMap map = new NanoGuildMap();
+        // Churn of distinct guilds fills the table with removed slots, resizing clears them instead of growing
+        for (int i = 0; i < 10000; i++) {
+            map.put(GUILD + i, new NanoGuild(i, 0));
+            if (i >= 4) map.remove(GUILD + i - 4);
+        }
+        assertEquals(4, map.size());
+        assertEquals(16, map.getCapacity());
+        for (int i = 0; i < 10000; i++) {
+            NanoGuild guild = map.get(GUILD + i);
+            if (i < 9996) {
+                assertNull(guild);
+            } else {
+                assertEquals(i, guild.getTextchannel());
+            }
+        }
+    }
+
+    @Test
+    public void growsWithItsGuilds() {
+        NanoGuildMap map = new NanoGuildMap();
+        for (int i = 0; i < 100000; i++) {
+            map.put(GUILD + i * 4194304L, new NanoGuild(i, 0)); // Consecutive snowflake timestamps
+        }
+        assertEquals(100000, map.size());
+        assertTrue(map.getCapacity() * 60L >= 100000 * 100L);
+        for (int i = 0; i < 100000; i++) {
+            assertEquals(i, map.get(GUILD + i * 4194304L).getTextchannel());
+        }
+        map.clear();
+        assertEquals(0, map.size());
+        assertNull(map.get(GUILD));
+    }
+
+    @Test
+    public void readersSeeEveryGuildWhileTheWriterResizes() throws InterruptedException {
+        NanoGuildMap map = new NanoGuildMap();
+        NanoGuild[] stable = new NanoGuild[100];
+        for (int i = 0; i < stable.length; i++) {
+            stable[i] = new NanoGuild(i, 0);
+            map.put(GUILD + i, stable[i]);
+        }
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> failure = new AtomicReference<String>();
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int r = 0; r < 4; r++) {
+            Thread reader = new Thread(() -> {
+                while (!done.get() && failure.get() == null) {
+                    for (int i = 0; i < stable.length; i++) {
+                        if (map.get(GUILD + i) != stable[i]) {
+                            failure.compareAndSet(null, "guild " + i + " missing");
+                        }
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        // Grows through several resizes, then churns so removed slots get dropped
+        for (int i = stable.length; i < 200000; i++) {
+            map.put(GUILD + i, new NanoGuild(i, 0));
+            if (i >= 50000) map.remove(GUILD + i - 50000 + stable.length);
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join(5000);
+        }
+        assertNull(failure.get());
+        assertEquals(50000, map.size());
+    }
+}
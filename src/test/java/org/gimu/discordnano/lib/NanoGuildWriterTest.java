@@ -0,0 +1,192 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.lib;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import static org.junit.Assert.*;
+
+public class NanoGuildWriterTest {
+
+    private static final long GUILD = 81384788765712384L;
+    private static final long TEXT = 81384788765712385L;
+    private static final long VOICE = 81384788765712386L;
+
+    private NanoGuildWriter writer;
+
+    @Before
+    public void setUp() throws SQLException {
+        NanoDatabaseTest.openEmbedded("writer", 2);
+        insert(GUILD);
+        writer = new NanoGuildWriter(60000, 100);
+    }
+
+    @After
+    public void tearDown() {
+        writer.shutdown();
+        NanoDatabase.close();
+    }
+
+    @Test
+    public void flushWritesUpdates() throws SQLException {
+        writer.update(GUILD, TEXT, 0);
+        assertEquals(1, writer.getPendingCount());
+        assertArrayEquals(new String[]{"", ""}, channels(GUILD));
+
+        writer.flush();
+        assertEquals(0, writer.getPendingCount());
+        assertArrayEquals(new String[]{Long.toString(TEXT), ""}, channels(GUILD));
+    }
+
+    @Test
+    public void coalescesWritesOfOneGuild() throws SQLException {
+        writer.update(GUILD, TEXT, 0);
+        writer.update(GUILD, TEXT, VOICE);
+        writer.flush();
+
+        assertEquals(2, writer.getQueuedCount());
+        assertEquals(1, writer.getCoalescedCount());
+        assertEquals(1, writer.getWrittenCount());
+        assertArrayEquals(new String[]{Long.toString(TEXT), Long.toString(VOICE)}, channels(GUILD));
+    }
+
+    @Test
+    public void deleteStaysPendingUntilWritten() throws SQLException {
+        writer.update(GUILD, TEXT, 0);
+        writer.delete(GUILD);
+        assertTrue(writer.isDeletePending(GUILD));
+
+        writer.flush();
+        assertFalse(writer.isDeletePending(GUILD));
+        assertNull(channels(GUILD));
+    }
+
+    @Test
+    public void deleteStaysPendingWhileBeingWritten() throws Exception {
+        writer.delete(GUILD);
+        Thread flush;
+        try (Connection lock = NanoDatabase.getConnection()) {
+            // Hold the row so the flush blocks inside its transaction
+            lock.setAutoCommit(false);
+            try (Statement st = lock.createStatement()) {
+                st.executeQuery("SELECT * FROM NanoGuilds WHERE guild_id = '" + GUILD + "' FOR UPDATE").close();
+            }
+            flush = new Thread(writer::flush);
+            flush.start();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (writer.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, writer.getPendingCount());
+            assertTrue(flush.isAlive());
+            assertTrue(writer.isDeletePending(GUILD));
+            lock.rollback();
+        }
+        flush.join(5000);
+        assertFalse(writer.isDeletePending(GUILD));
+        assertNull(channels(GUILD));
+    }
+
+    @Test
+    public void failedFlushIsRetried() throws SQLException {
+        execute("ALTER TABLE NanoGuilds RENAME TO NanoGuildsMoved");
+        writer.update(GUILD, TEXT, 0);
+        writer.flush();
+        assertEquals(1, writer.getPendingCount());
+        assertEquals(0, writer.getWrittenCount());
+
+        execute("ALTER TABLE NanoGuildsMoved RENAME TO NanoGuilds");
+        writer.flush();
+        assertEquals(0, writer.getPendingCount());
+        assertArrayEquals(new String[]{Long.toString(TEXT), ""}, channels(GUILD));
+    }
+
+    @Test
+    public void fullBatchFlushesInTheBackground() throws Exception {
+        NanoGuildWriter batched = new NanoGuildWriter(60000, 2);
+        try {
+            insert(GUILD + 1);
+            batched.update(GUILD, TEXT, 0);
+            batched.update(GUILD + 1, TEXT, 0);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (batched.getWrittenCount() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, batched.getWrittenCount());
+            assertArrayEquals(new String[]{Long.toString(TEXT), ""}, channels(GUILD + 1));
+        } finally {
+            batched.shutdown();
+        }
+    }
+
+    @Test
+    public void queuesOneBatchFlushWhileTheDatabaseHangs() throws Exception {
+        NanoGuildWriter batched = new NanoGuildWriter(60000, 1);
+        try (Connection first = NanoDatabase.getConnection();
+             Connection second = NanoDatabase.getConnection()) {
+            // Pool exhausted, every flush waits for the connection timeout
+            for (int i = 0; i < 1000; i++) {
+                batched.update(GUILD + i, TEXT, 0);
+            }
+            ScheduledThreadPoolExecutor flusher = (ScheduledThreadPoolExecutor) batched.getFlusher();
+            assertTrue(flusher.getQueue().size() <= 2); // The periodic flush and one batch flush
+        } finally {
+            batched.shutdown();
+        }
+    }
+
+    @Test
+    public void shutdownFlushes() throws SQLException {
+        writer.update(GUILD, 0, VOICE);
+        writer.shutdown();
+        assertArrayEquals(new String[]{"", Long.toString(VOICE)}, channels(GUILD));
+    }
+
+    static void insert(long guildID) throws SQLException {
+        try (Connection conn = NanoDatabase.getConnection();
+             PreparedStatement ps = conn.prepareStatement("INSERT INTO NanoGuilds (guild_id, textchannel, voicechannel) VALUES(?, '', '')")) {
+            ps.setString(1, Long.toString(guildID));
+            ps.executeUpdate();
+        }
+    }
+
+    // Text and voice channel of the guild's row, null without a row
+    static String[] channels(long guildID) throws SQLException {
+        try (Connection conn = NanoDatabase.getConnection();
+             PreparedStatement ps = conn.prepareStatement("SELECT textchannel, voicechannel FROM NanoGuilds WHERE guild_id = ?")) {
+            ps.setString(1, Long.toString(guildID));
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? new String[]{rs.getString(1), rs.getString(2)} : null;
+            }
+        }
+    }
+
+    private static void execute(String sql) throws SQLException {
+        try (Connection conn = NanoDatabase.getConnection();
+             Statement st = conn.createStatement()) {
+            st.executeUpdate(sql);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.lib;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class NanoMetricsTest {
+
+    @Test
+    public void rendersLabelledChildren() {
+        NanoMetrics.counter("test_render_total", "Rendered counter", "guild").inc("1\"2");
+        NanoMetrics.histogram("test_render_seconds", "Rendered histogram", "guild").labels("3").observeNanos(TimeUnit.MILLISECONDS.toNanos(2));
+
+        String scrape = NanoMetrics.scrape();
+        assertTrue(scrape.contains("test_render_total{guild=\"1\\\"2\"} 1\n"));
+        assertTrue(scrape.contains("test_render_seconds_bucket{guild=\"3\",le=\"0.001\"} 0\n"));
+        assertTrue(scrape.contains("test_render_seconds_bucket{guild=\"3\",le=\"0.0025\"} 1\n"));
+        assertTrue(scrape.contains("test_render_seconds_count{guild=\"3\"} 1\n"));
+    }
+
+    @Test
+    public void removedChildrenAreNotScraped() {
+        NanoMetrics.Counter counter = NanoMetrics.counter("test_removed_total", "Removed counter", "guild");
+        counter.inc("1");
+        counter.remove("1");
+
+        assertFalse(NanoMetrics.scrape().contains("test_removed_total{"));
+    }
+
+    @Test
+    public void scrapesWhileChildrenAreRemoved() throws InterruptedException {
+        NanoMetrics.Counter counter = NanoMetrics.counter("test_churn_total", "Churned counter", "guild");
+        NanoMetrics.Histogram histogram = NanoMetrics.histogram("test_churn_seconds", "Churned histogram", "guild");
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread churn = new Thread(() -> {
+            while (running.get()) {
+                for (int i = 0; i < 64; i++) {
+                    String guild = Integer.toString(i);
+                    counter.inc(guild);
+                    histogram.labels(guild).observeNanos(i);
+                }
+                for (int i = 0; i < 64; i++) {
+                    String guild = Integer.toString(i);
+                    counter.remove(guild);
+                    histogram.remove(guild);
+                }
+            }
+        });
+        churn.start();
+        try {
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300);
+            while (System.nanoTime() < end) {
+                assertFalse(NanoMetrics.scrape().contains("null"));
+            }
+        } finally {
+            running.set(false);
+            churn.join();
+        }
+    }
+}
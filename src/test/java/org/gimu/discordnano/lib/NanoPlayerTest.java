@@ -0,0 +1,181 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.lib;
+
+import net.dv8tion.jda.core.audio.AudioSendHandler;
+import net.dv8tion.jda.core.entities.Guild;
+import net.dv8tion.jda.core.managers.AudioManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class NanoPlayerTest {
+
+    private static final long GUILD = 81384788765712384L;
+    private static final int SAMPLE_RATE = 48000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicReference<AudioSendHandler> sendHandler = new AtomicReference<AudioSendHandler>();
+    private Guild guild;
+
+    @Before
+    public void setUp() {
+        NanoPlayer.setDefaults(50, null);
+        AudioManager audioManager = proxy(AudioManager.class, (method, args) -> {
+            if (method.equals("setSendingHandler")) {
+                sendHandler.set((AudioSendHandler) args[0]);
+            }
+            return null;
+        });
+        guild = proxy(Guild.class, (method, args) -> {
+            if (method.equals("getId")) return Long.toString(GUILD);
+            if (method.equals("getAudioManager")) return audioManager;
+            return null;
+        });
+    }
+
+    @After
+    public void tearDown() {
+        NanoPlayer.destroy(GUILD);
+    }
+
+    @Test
+    public void playsLocalFiles() throws Exception {
+        File file = tone("tone.wav", 2000);
+        NanoPlayer player = NanoPlayer.get(guild);
+        player.queue(file.getAbsolutePath()).get(10, TimeUnit.SECONDS);
+
+        assertEquals(file.getAbsolutePath(), player.getPlayingTrack().getInfo().identifier);
+        assertEquals(50, player.getVolume());
+        assertTrue(sendHandler.get().isOpus());
+        assertTrue(nextPacket().length > 0);
+    }
+
+    @Test
+    public void queuesTracksInOrder() throws Exception {
+        File first = tone("first.wav", 2000);
+        File second = tone("second.wav", 2000);
+        NanoPlayer player = NanoPlayer.get(guild);
+        player.queue(first.getAbsolutePath());
+        player.queue(second.getAbsolutePath()).get(10, TimeUnit.SECONDS);
+
+        assertEquals(first.getAbsolutePath(), player.getPlayingTrack().getInfo().identifier);
+        assertEquals(1, player.getQueue().size());
+        assertEquals(second.getAbsolutePath(), player.getQueue().get(0).getInfo().identifier);
+
+        player.skip();
+        assertEquals(second.getAbsolutePath(), player.getPlayingTrack().getInfo().identifier);
+        assertTrue(player.getQueue().isEmpty());
+    }
+
+    @Test
+    public void ignoresMissingFiles() throws Exception {
+        NanoPlayer player = NanoPlayer.get(guild);
+        player.queue(new File(folder.getRoot(), "missing.wav").getAbsolutePath()).get(10, TimeUnit.SECONDS);
+
+        assertNull(player.getPlayingTrack());
+        assertTrue(player.getQueue().isEmpty());
+        assertFalse(sendHandler.get().canProvide());
+    }
+
+    @Test
+    public void destroyReleasesTheGuild() throws Exception {
+        NanoPlayer player = NanoPlayer.get(guild);
+        player.queue(tone("tone.wav", 2000).getAbsolutePath()).get(10, TimeUnit.SECONDS);
+        nextPacket();
+        nextPacket();
+        assertTrue(NanoMetrics.scrape().contains("guild=\"" + GUILD + "\""));
+
+        NanoPlayer.destroy(GUILD);
+
+        assertNull(NanoPlayer.getIfPresent(GUILD));
+        assertNull(sendHandler.get());
+        assertFalse(NanoMetrics.scrape().contains("guild=\"" + GUILD + "\""));
+    }
+
+    // Polls the send handler the way JDA's send thread does
+    private byte[] nextPacket() throws InterruptedException {
+        AudioSendHandler handler = sendHandler.get();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!handler.canProvide()) {
+            assertTrue("no frame within 10 seconds", System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+        return handler.provide20MsAudio();
+    }
+
+    // 16 bit stereo PCM sine wave
+    private File tone(String name, int millis) throws IOException {
+        File file = folder.newFile(name);
+        int frames = SAMPLE_RATE * millis / 1000;
+        int dataSize = frames * 4;
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeBytes("RIFF");
+            out.writeInt(Integer.reverseBytes(36 + dataSize));
+            out.writeBytes("WAVEfmt ");
+            out.writeInt(Integer.reverseBytes(16));
+            out.writeShort(Short.reverseBytes((short) 1)); // PCM
+            out.writeShort(Short.reverseBytes((short) 2));
+            out.writeInt(Integer.reverseBytes(SAMPLE_RATE));
+            out.writeInt(Integer.reverseBytes(SAMPLE_RATE * 4));
+            out.writeShort(Short.reverseBytes((short) 4));
+            out.writeShort(Short.reverseBytes((short) 16));
+            out.writeBytes("data");
+            out.writeInt(Integer.reverseBytes(dataSize));
+            for (int i = 0; i < frames; i++) {
+                short sample = (short) (Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE) * 8000);
+                out.writeShort(Short.reverseBytes(sample));
+                out.writeShort(Short.reverseBytes(sample));
+            }
+        }
+        return file;
+    }
+
+    private interface Answer {
+        Object answer(String method, Object[] args);
+    }
+
+    // Only the methods the player calls are answered, the others return null
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Answer answer) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (instance, method, args) -> {
+            switch (method.getName()) {
+                case "hashCode":
+                    return System.identityHashCode(instance);
+                case "equals":
+                    return instance == args[0];
+                case "toString":
+                    return type.getSimpleName();
+                default:
+                    return answer.answer(method.getName(), args);
+            }
+        });
+    }
+}
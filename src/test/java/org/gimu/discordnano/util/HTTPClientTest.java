@@ -0,0 +1,289 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.util;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ContentType;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class HTTPClientTest {
+
+    private HttpServer server;
+    private HTTPClient client;
+    private String base;
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            respond(exchange, 404, "missing");
+        });
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+        client = new HTTPClient(10, 2, 1000, 500, 30000, true, 2, 64 * 1024);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        server.stop(0);
+        ((ExecutorService) server.getExecutor()).shutdownNow();
+    }
+
+    // Handlers see every request, so connection reuse is visible through the client ports
+    void handle(String path, HttpHandler handler) {
+        server.createContext(path, exchange -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            handler.handle(exchange);
+        });
+    }
+
+    String url(String path) {
+        return base + path;
+    }
+
+    @Test
+    public void getsStatusHeadersAndBody() throws IOException {
+        handle("/hello", exchange -> {
+            exchange.getResponseHeaders().add("X-Agent", exchange.getRequestHeaders().getFirst("User-Agent"));
+            respond(exchange, 200, "hello");
+        });
+        HTTPResponse response = client.get(url("/hello"));
+        assertEquals(200, response.getStatus());
+        assertTrue(response.isSuccessful());
+        assertEquals("hello", response.getBodyAsString());
+        assertEquals(HTTPClient.USER_AGENT, response.getHeader("x-agent"));
+    }
+
+    @Test
+    public void returnsErrorResponses() throws IOException {
+        HTTPResponse response = client.get(url("/nothing"));
+        assertEquals(404, response.getStatus());
+        assertFalse(response.isSuccessful());
+        assertEquals("missing", response.getBodyAsString());
+    }
+
+    @Test
+    public void postsTheBody() throws IOException {
+        handle("/echo", exchange -> {
+            assertEquals("POST", exchange.getRequestMethod());
+            respond(exchange, 200, readAll(exchange.getRequestBody()));
+        });
+        HTTPResponse response = client.post(url("/echo"), ContentType.APPLICATION_JSON, "{\"a\":1}".getBytes(StandardCharsets.UTF_8));
+        assertEquals("{\"a\":1}", response.getBodyAsString());
+    }
+
+    @Test
+    public void decodesGzipResponses() throws IOException {
+        handle("/gzip", exchange -> {
+            assertTrue(exchange.getRequestHeaders().getFirst("Accept-Encoding").contains("gzip"));
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                gzip.write("compressed".getBytes(StandardCharsets.UTF_8));
+            }
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(200, compressed.size());
+            try (OutputStream out = exchange.getResponseBody()) {
+                compressed.writeTo(out);
+            }
+        });
+        assertEquals("compressed", client.get(url("/gzip")).getBodyAsString());
+    }
+
+    @Test
+    public void reusesConnections() throws IOException {
+        handle("/hello", exchange -> respond(exchange, 200, "hello"));
+        for (int i = 0; i < 5; i++) {
+            assertEquals("hello", client.get(url("/hello")).getBodyAsString());
+        }
+        assertEquals(1, clientPorts.size());
+        assertEquals(0, client.getLeasedConnections());
+        assertEquals(1, client.getIdleConnections());
+    }
+
+    @Test
+    public void limitsConnectionsPerHost() throws Exception {
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        handle("/slow", exchange -> {
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+            sleep(50);
+            active.decrementAndGet();
+            respond(exchange, 200, "slow");
+        });
+        ExecutorService callers = Executors.newFixedThreadPool(6);
+        try {
+            Future<?>[] calls = new Future<?>[6];
+            for (int i = 0; i < calls.length; i++) {
+                calls[i] = callers.submit(() -> client.get(url("/slow")));
+            }
+            for (Future<?> call : calls) {
+                call.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+        assertEquals(2, maxActive.get());
+    }
+
+    @Test(expected = SocketTimeoutException.class)
+    public void timesOutSlowResponses() throws IOException {
+        handle("/hang", exchange -> {
+            sleep(2000);
+            respond(exchange, 200, "late");
+        });
+        client.get(url("/hang"));
+    }
+
+    @Test
+    public void getsAsynchronously() throws Exception {
+        handle("/hello", exchange -> respond(exchange, 200, "hello"));
+        assertEquals("hello", client.getAsync(url("/hello"), Collections.<String, String>emptyMap()).get(5, TimeUnit.SECONDS).getBodyAsString());
+    }
+
+    @Test
+    public void streamsJsonIntoTheHandler() throws IOException {
+        handle("/json", exchange -> respond(exchange, 200, "{\"a\":1,\"b\":\"two\"}"));
+        JSONObject json = client.stream(new HttpGet(url("/json")), in -> JSONUtil.readJson(in, 0));
+        assertEquals(1, json.getInt("a"));
+        assertEquals("two", json.getString("b"));
+
+        // Read to the end, so the connection went back to the pool
+        assertEquals(0, client.getLeasedConnections());
+        assertEquals(1, client.getIdleConnections());
+    }
+
+    @Test
+    public void dropsTheConnectionWhenTheHandlerStopsEarly() throws IOException {
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            padding.append("0123456789");
+        }
+        handle("/large", exchange -> respond(exchange, 200, "{\"a\":1,\"padding\":\"" + padding + "\"}"));
+        Map<String, Object> fields = client.stream(new HttpGet(url("/large")), in -> JSONUtil.readFields(in, 0, "a"));
+        assertEquals(Collections.singletonMap("a", 1), fields);
+        assertEquals(0, client.getLeasedConnections());
+        assertEquals(0, client.getIdleConnections());
+    }
+
+    @Test(expected = IOException.class)
+    public void streamFailsOnErrorResponses() throws IOException {
+        client.stream(new HttpGet(url("/nothing")), in -> JSONUtil.readJson(in, 0));
+    }
+
+    @Test
+    public void rejectsBodiesLargerThanTheLimit() throws IOException {
+        AtomicInteger written = new AtomicInteger();
+        handle("/huge", exchange -> {
+            // Chunked, so only the bytes read tell the size
+            exchange.sendResponseHeaders(200, 0);
+            byte[] chunk = new byte[8192];
+            try (OutputStream out = exchange.getResponseBody()) {
+                for (int i = 0; i < 1024; i++) {
+                    out.write(chunk);
+                    written.addAndGet(chunk.length);
+                }
+            } catch (IOException e) {
+                // Client went away
+            }
+        });
+        try {
+            client.get(url("/huge"));
+            fail("Buffered a body over the limit");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("exceeds"));
+        }
+        assertEquals(0, client.getLeasedConnections());
+        assertEquals(0, client.getIdleConnections());
+        assertTrue(written.get() < 8 * 1024 * 1024);
+    }
+
+    @Test
+    public void rejectsLargeContentLengthBeforeReading() throws IOException {
+        handle("/declared", exchange -> respond(exchange, 200, new String(new char[100 * 1024]).replace('\0', 'x')));
+        try {
+            client.get(url("/declared"));
+            fail("Buffered a body over the limit");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("exceeds"));
+        }
+        assertEquals(0, client.getLeasedConnections());
+    }
+
+    @Test
+    public void cacheAppliesTheCallersLimit() throws IOException {
+        handle("/sized", exchange -> respond(exchange, 200, "0123456789"));
+        HTTPCache cache = new HTTPCache(client, 1024 * 1024, 60, 0, TimeUnit.SECONDS);
+        try {
+            cache.get(url("/sized"), Collections.<String, String>emptyMap(), 5);
+            fail("Buffered a body over the limit");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("exceeds"));
+        }
+        assertEquals("0123456789", cache.get(url("/sized"), Collections.<String, String>emptyMap(), 10).getBodyAsString());
+    }
+
+    static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
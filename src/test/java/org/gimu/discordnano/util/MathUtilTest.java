@@ -0,0 +1,105 @@
+/*
+ *  Copyright 2016 Son Nguyen <mail@gimu.org>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.gimu.discordnano.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+// Results and messages of the former recursive parser
+public class MathUtilTest {
+
+    @Test
+    public void keepsThePrecedenceOfTheRecursiveParser() {
+        assertResult(-4, "-2^2"); // Unary minus binds looser than ^
+        assertResult(512, "2^3^2"); // ^ is right associative
+        assertResult(0.5, "2^-1^2");
+        assertResult(4, "sqrt 4^2"); // A function takes the whole power
+        assertResult(-4, "-sqrt 16");
+        assertResult(14, "2*(3+4)");
+        assertResult(2.5, "10/4");
+        assertResult(-2, "+-+2");
+        assertResult(1, "sin 0 + cos 0");
+    }
+
+    @Test
+    public void toleratesUnclosedParentheses() {
+        assertResult(3, "(1+2");
+        assertResult(14, "2*(3+4");
+    }
+
+    @Test
+    public void reportsUnknownFunctionsAfterTheirArgument() {
+        assertError(RuntimeException.class, "Unknown function: foo", "foo 2 3");
+    }
+
+    @Test
+    public void rejectsMalformedNumbers() {
+        assertError(NumberFormatException.class, "multiple points", "1.2.3");
+    }
+
+    @Test
+    public void reportsTrailingInput() {
+        assertError(RuntimeException.class, "Unexpected: x", "1+2x");
+        assertError(RuntimeException.class, "Unexpected: 3", "2 3");
+        assertError(RuntimeException.class, "Unexpected: )", "()");
+        assertError(RuntimeException.class, "Unexpected: \uffff", "1+"); // End of input
+    }
+
+    @Test
+    public void limitsTheLength() {
+        assertError(ExpressionLimitException.class, "Expression is longer than 2000 characters", repeat("1", MathUtil.MAX_LENGTH + 1));
+    }
+
+    @Test
+    public void limitsTheNesting() {
+        assertResult(1, repeat("(", MathUtil.MAX_DEPTH) + "1");
+        assertError(ExpressionLimitException.class, "Expression is nested deeper than 100 levels", repeat("(", MathUtil.MAX_DEPTH + 1) + "1");
+        assertError(ExpressionLimitException.class, "Expression is nested deeper than 100 levels", repeat("-", 1000) + "1");
+    }
+
+    @Test
+    public void limitsTheOperations() {
+        assertResult(501, "1" + repeat("+1", MathUtil.MAX_OPERATIONS));
+        assertError(ExpressionLimitException.class, "Expression has more than 500 operations", "1" + repeat("+1", MathUtil.MAX_OPERATIONS + 1));
+    }
+
+    private static void assertResult(double expected, String expression) {
+        assertEquals(expression, expected, new MathUtil(expression).eval(), 0);
+        assertEquals(expression, expected, MathUtil.evaluate(expression), 0);
+    }
+
+    private static void assertError(Class<? extends RuntimeException> type, String message, String expression) {
+        for (int i = 0; i < 2; i++) {
+            try {
+                if (i == 0) new MathUtil(expression).eval();
+                else MathUtil.evaluate(expression);
+                fail("No error for " + expression);
+            } catch (RuntimeException e) {
+                assertEquals(type, e.getClass());
+                assertEquals(message, e.getMessage());
+            }
+        }
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder(s.length() * times);
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+}